@@ -26,19 +26,22 @@ package org.antoniomagni.dcm4ceph.core;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.List;
 import java.util.Properties;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+import org.antoniomagni.dcm4ceph.util.DcmUtils;
+import org.antoniomagni.dcm4ceph.util.FileUtils;
+import org.antoniomagni.dcm4ceph.util.IndexedDicomDir;
+import org.antoniomagni.dcm4ceph.util.Log;
+import org.antoniomagni.dcm4ceph.util.WritePolicy;
 import org.dcm4che2.data.DicomObject;
-import org.dcm4che2.data.Tag;
-import org.dcm4che2.io.DicomInputStream;
-import org.dcm4che2.io.StopTagInputHandler;
-import org.dcm4che2.media.ApplicationProfile;
-import org.dcm4che2.media.BasicApplicationProfile;
-import org.dcm4che2.media.DicomDirReader;
-import org.dcm4che2.media.DicomDirWriter;
-import org.dcm4che2.media.FileSetInformation;
-import org.dcm4che2.util.UIDUtils;
 
 /**
  * This class represents a set of lateral and frontal cephalograms.
@@ -53,10 +56,6 @@ import org.dcm4che2.util.UIDUtils;
  *
  */
 public class BBCephalogramSet {
-    private DicomDirReader dicomdir;
-
-    private ApplicationProfile ap = new BasicApplicationProfile();
-
     private Cephalogram ceph1, ceph2;
 
     private File ceph1File, ceph2File, fidsFile;
@@ -65,6 +64,14 @@ public class BBCephalogramSet {
 
     private String StudyUID;
 
+    private boolean contentUIDs;
+
+    private Executor executor;
+
+    private boolean checksums;
+
+    private long[] writtenChecksums;
+
     /**
      * Construct a new set of cephalograms from files.
      * <p>
@@ -82,9 +89,45 @@ public class BBCephalogramSet {
      *            Fiducial distance information
      */
     public BBCephalogramSet(File ceph1File, File ceph2File, File fiducialFile) {
+        this(ceph1File, ceph2File, fiducialFile, false);
+    }
+
+    /**
+     * Construct a new set of cephalograms from files.
+     * <p>
+     * Same as {@link #BBCephalogramSet(File, File, File)}, but if contentUIDs
+     * is true all UIDs are derived from the content of the images and
+     * properties instead of being random. Converting the same files again
+     * then gives the same Study, Series and SOP Instance UIDs, so that a PACS
+     * does not see a new study.
+     *
+     * @param ceph1File
+     *            Lateral or PA image file.
+     * @param ceph2File
+     *            PA or lateral image file.
+     * @param fiducialFile
+     *            Fiducial distance information
+     * @param contentUIDs
+     *            Whether to derive the UIDs from content.
+     *
+     * @see Cephalogram#useContentUIDs()
+     */
+    public BBCephalogramSet(File ceph1File, File ceph2File, File fiducialFile,
+            boolean contentUIDs) {
         ceph1 = new Cephalogram(ceph1File);
         ceph2 = new Cephalogram(ceph2File);
 
+        if (contentUIDs) {
+            try {
+                ceph1.useContentUIDs();
+                ceph2.useContentUIDs();
+                this.contentUIDs = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                Log.err("Cannot read images, using random UIDs.");
+            }
+        }
+
         String[] cephUIDs = { ceph1.getUID(), ceph2.getUID() };
         sbFiducialSet = new SBFiducialSet(cephUIDs, fiducialFile);
         init();
@@ -133,16 +176,85 @@ public class BBCephalogramSet {
     }
 
     void init() {
-        StudyUID = UIDUtils.createUID();
+        if (contentUIDs) {
+            // The cephalograms already have their own series.
+            StudyUID = makeContentStudyUID();
+            ceph1.setStudyUID(StudyUID);
+            ceph2.setStudyUID(StudyUID);
+            sbFiducialSet.useContentUIDs(StudyUID);
+            return;
+        }
+
+        StudyUID = DcmUtils.createUID();
 
         ceph1.setStudyUID(StudyUID);
-        ceph1.setSeriesUID(UIDUtils.createUID());
+        ceph1.setSeriesUID(DcmUtils.createUID());
 
         ceph2.setStudyUID(StudyUID);
-        ceph2.setSeriesUID(UIDUtils.createUID());
+        ceph2.setSeriesUID(DcmUtils.createUID());
 
         sbFiducialSet.setStudyUID(StudyUID);
-        sbFiducialSet.setSeriesUID(UIDUtils.createUID());
+        sbFiducialSet.setSeriesUID(DcmUtils.createUID());
+    }
+
+    /**
+     * Derive the Study UID from the two cephalograms, regardless of their
+     * order.
+     */
+    private String makeContentStudyUID() {
+        String uid1 = ceph1.getUID();
+        String uid2 = ceph2.getUID();
+        if (uid1.compareTo(uid2) > 0) {
+            String tmp = uid1;
+            uid1 = uid2;
+            uid2 = tmp;
+        }
+        return DcmUtils.createNameBasedUID("study|" + uid1 + "|" + uid2);
+    }
+
+    /**
+     * Write the three instances of this set concurrently.
+     * <p>
+     * When an executor is set, {@link #writeCephs(File)} writes the second
+     * cephalogram and the fiducial set on it, while the first cephalogram is
+     * written on the calling thread, and waits for all three before adding
+     * them to the DICOMDIR. The executor must not be the one running the
+     * calling thread if it is bounded, or the set may wait forever for a free
+     * worker.
+     *
+     * @param executor
+     *            The executor to use, or {@code null} to write the instances
+     *            one after another.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Set how the cephalograms and the fiducial set are put in place once
+     * written.
+     *
+     * @param writePolicy
+     * @see Cephalogram#setWritePolicy(WritePolicy)
+     */
+    public void setWritePolicy(WritePolicy writePolicy) {
+        ceph1.setWritePolicy(writePolicy);
+        ceph2.setWritePolicy(writePolicy);
+        sbFiducialSet.setWritePolicy(writePolicy);
+    }
+
+    /**
+     * Make the cephalograms reference each other and the fiducial set, and
+     * the fiducial set reference the cephalograms.
+     */
+    private void crossReference() {
+        ceph1.setReferencedImage(ceph2.getUID());
+        ceph2.setReferencedImage(ceph1.getUID());
+        ceph1.setReferencedFiducialSet(sbFiducialSet.getUID());
+        ceph2.setReferencedFiducialSet(sbFiducialSet.getUID());
+
+        String[] uids = { ceph1.getUID(), ceph2.getUID() };
+        sbFiducialSet.setReferencedImages(uids);
     }
 
     public void setFiducialSetProperties(Properties fidsetprops) {
@@ -194,89 +306,256 @@ public class BBCephalogramSet {
         this.sbFiducialSet = sbFiducialSet;
     }
 
+    /**
+     * Compute the CRC-32 of each file while it is written, for instance to
+     * record it in a {@link org.antoniomagni.dcm4ceph.util.BatchJournal}.
+     * The pixel data is then copied through a buffer rather than by the
+     * kernel.
+     *
+     * @param checksums
+     * @see #getWrittenChecksums()
+     */
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * Get the CRC-32 of the files written by the last call to one of the
+     * writeCephs methods, if {@link #setChecksums(boolean)} was set.
+     *
+     * @return The checksums, in the order of {@link #getWrittenFiles()}, or
+     *         {@code null}.
+     */
+    public long[] getWrittenChecksums() {
+        return writtenChecksums;
+    }
+
+    /**
+     * Get the files written by the last call to one of the writeCephs
+     * methods.
+     *
+     * @return The files of the two cephalograms and of the fiducial set, in
+     *         this order; an element is {@code null} if that instance could
+     *         not be written, or has not been written yet.
+     */
+    public File[] getWrittenFiles() {
+        return new File[] { ceph1File, ceph2File, fidsFile };
+    }
+
     /**
      * Write out this cephalogram set to a directory.
+     * <p>
+     * The two cephalograms and the fiducial set are written in their own
+     * subdirectories, and a DICOMDIR referencing them is written in rootdir.
+     * The directory records are built from the objects being written, so the
+     * files are not read back.
+     *
+     * @param rootdir
+     * @throws IOException
+     *             If an instance or the DICOMDIR could not be written.
+     */
+    public void writeCephs(File rootdir) throws IOException {
+        IndexedDicomDir dicomdir = IndexedDicomDir
+                .create(getDicomdirFile(rootdir));
+        try {
+            writeCephs(rootdir, dicomdir);
+            flush();
+        } finally {
+            dicomdir.close();
+        }
+    }
+
+    /**
+     * Write out this cephalogram set to a directory, appending it to the
+     * DICOMDIR in rootdir.
+     * <p>
+     * The DICOMDIR is created if it does not exist yet. Patient, study and
+     * series records already in it are reused.
+     *
+     * @param rootdir
+     * @throws IOException
+     *             If an instance or the DICOMDIR could not be written.
+     * @see IndexedDicomDir#open(File)
+     */
+    public void appendCephs(File rootdir) throws IOException {
+        IndexedDicomDir dicomdir = IndexedDicomDir
+                .open(getDicomdirFile(rootdir));
+        try {
+            writeCephs(rootdir, dicomdir);
+            flush();
+        } finally {
+            dicomdir.close();
+        }
+    }
+
+    /**
+     * Write out this cephalogram set to a directory, adding it to an open
+     * DICOMDIR.
+     * <p>
+     * This lets many sets be appended to a DICOMDIR which is opened and
+     * indexed only once. The DICOMDIR is not closed.
      *
      * @param rootdir
+     *            The directory to write the files to. It must be the directory
+     *            of the DICOMDIR, or below it.
+     * @param dicomdir
+     *            The DICOMDIR to add the records to.
+     * @throws IOException
      */
-    public void writeCephs(File rootdir) {
+    public void writeCephs(File rootdir, IndexedDicomDir dicomdir)
+            throws IOException {
         File ceph1dir = new File(rootdir, "ceph1");
-        File ceph2dir = new File(rootdir, "ceph2");
-        File fiducialdir = new File(rootdir, "fiducials");
+        final File ceph2dir = new File(rootdir, "ceph2");
+        final File fiducialdir = new File(rootdir, "fiducials");
         ceph1dir.mkdirs();
         ceph2dir.mkdirs();
         fiducialdir.mkdirs();
 
-        FileSetInformation fsinfo = new FileSetInformation();
-        fsinfo.init();
-        try {
-            dicomdir = new DicomDirWriter(new File(rootdir.getAbsolutePath()
-                    + File.separator + "DICOMDIR"), fsinfo);
+        // All UIDs are known at this point, so the references can be set
+        // before any of the instances is written.
+        crossReference();
+
+        final File ceph1Target = new File(ceph1dir.getAbsoluteFile(),
+                ceph1.getDCMFileName());
+        final File ceph2Target = new File(ceph2dir.getAbsoluteFile(),
+                ceph2.getDCMFileName());
+        final File fidsTarget = new File(fiducialdir.getAbsoluteFile(),
+                FileUtils.getDCMFileName(sbFiducialSet.getPropertiesFile()));
+        final CRC32 ceph1Crc = checksums ? new CRC32() : null;
+        final CRC32 ceph2Crc = checksums ? new CRC32() : null;
+        final CRC32 fidsCrc = checksums ? new CRC32() : null;
+        writtenChecksums = null;
+
+        if (executor == null) {
+            ceph1File = ceph1.writeDCM(ceph1Target, ceph1Crc);
+            ceph2File = ceph2.writeDCM(ceph2Target, ceph2Crc);
+            fidsFile = sbFiducialSet.writeDCM(fidsTarget, fidsCrc);
+        } else {
+            FutureTask<File> ceph2Task = new FutureTask<File>(
+                    new Callable<File>() {
+                        public File call() throws IOException {
+                            return ceph2.writeDCM(ceph2Target, ceph2Crc);
+                        }
+                    });
+            FutureTask<File> fidsTask = new FutureTask<File>(
+                    new Callable<File>() {
+                        public File call() throws IOException {
+                            return sbFiducialSet.writeDCM(fidsTarget,
+                                    fidsCrc);
+                        }
+                    });
+            executor.execute(ceph2Task);
+            executor.execute(fidsTask);
+
+            try {
+                ceph1File = ceph1.writeDCM(ceph1Target, ceph1Crc);
+            } finally {
+                ceph2File = join(ceph2Task);
+                fidsFile = join(fidsTask);
+            }
+        }
 
-            ceph1File = ceph1.writeDCM(ceph1dir.getAbsolutePath(), null);
-            ceph2File = ceph2.writeDCM(ceph2dir.getAbsolutePath(), null);
-            fidsFile = sbFiducialSet.writeDCM(fiducialdir.getAbsolutePath(),
-                    null);
+        if (checksums)
+            writtenChecksums = new long[] { ceph1Crc.getValue(),
+                    ceph2Crc.getValue(), fidsCrc.getValue() };
 
-            dicomdir.close();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        // The records are added in a fixed order, whichever write finished
+        // first.
+        addRecords(dicomdir, ceph1.getDicomObject(), ceph1File);
+        addRecords(dicomdir, ceph2.getDicomObject(), ceph2File);
+        addRecords(dicomdir, sbFiducialSet.getDicomObject(), fidsFile);
+    }
 
+    /**
+     * Wait for a write submitted by {@link #writeCephs(File, IndexedDicomDir)}.
+     */
+    private static File join(Future<File> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for an instance to be written.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
     }
 
-    public void writeDicomdir(File rootdir) {
-        FileSetInformation fsinfo = new FileSetInformation();
-        fsinfo.init();
+    /**
+     * Write a DICOMDIR for this cephalogram set.
+     * <p>
+     * If the set has not been written yet, this is the same as
+     * {@link #writeCephs(File)}. Otherwise the DICOMDIR is rebuilt from the
+     * objects in memory, referencing the files written earlier.
+     *
+     * @param rootdir
+     * @throws IOException
+     *             If the DICOMDIR, or an instance not written yet, could not
+     *             be written.
+     */
+    public void writeDicomdir(File rootdir) throws IOException {
+        if (ceph1File == null && ceph2File == null && fidsFile == null) {
+            writeCephs(rootdir);
+            return;
+        }
+
+        IndexedDicomDir dicomdir = IndexedDicomDir
+                .create(getDicomdirFile(rootdir));
         try {
-            dicomdir = new DicomDirWriter(new File(rootdir.getAbsolutePath()
-                    + File.separator + "DICOMDIR"), fsinfo);
-            addFile(ceph1File);
-            addFile(ceph2File);
-            addFile(fidsFile);
+            addRecords(dicomdir, ceph1.getDicomObject(), ceph1File);
+            addRecords(dicomdir, ceph2.getDicomObject(), ceph2File);
+            addRecords(dicomdir, sbFiducialSet.getDicomObject(), fidsFile);
+            flush();
+        } finally {
             dicomdir.close();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
         }
+    }
+
+    /**
+     * Put the files written in place before the DICOMDIR referencing them is
+     * closed.
+     *
+     * @throws IOException
+     *             If a file could not be committed.
+     * @see WritePolicy#flush()
+     */
+    private void flush() throws IOException {
+        ceph1.getWritePolicy().flush();
+        if (sbFiducialSet.getWritePolicy() != ceph1.getWritePolicy())
+            sbFiducialSet.getWritePolicy().flush();
+        if (ceph2.getWritePolicy() != ceph1.getWritePolicy())
+            ceph2.getWritePolicy().flush();
+    }
 
+    private static File getDicomdirFile(File rootdir) {
+        return new File(rootdir.getAbsolutePath() + File.separator + "DICOMDIR");
     }
 
-    private int addFile(File f) throws IOException {
-        if (f.isDirectory()) {
-            int n = 0;
-            File[] fs = f.listFiles();
-            for (int i = 0; i < fs.length; i++) {
-                n += addFile(fs[i]);
-            }
-            return n;
-        }
+    /**
+     * Add the records of an object written to f, unless it was not written.
+     */
+    private void addRecords(IndexedDicomDir dicomdir, DicomObject dcmobj,
+            File f) throws IOException {
+        if (f == null)
+            return;
 
-        DicomInputStream in = new DicomInputStream(f);
-        in.setHandler(new StopTagInputHandler(Tag.PixelData));
-        DicomObject dcmobj = in.readDicomObject();
-        in.close();
-        DicomObject patrec = ap.makePatientDirectoryRecord(dcmobj);
-        DicomObject styrec = ap.makeStudyDirectoryRecord(dcmobj);
-        DicomObject serrec = ap.makeSeriesDirectoryRecord(dcmobj);
-        DicomObject instrec = ap.makeInstanceDirectoryRecord(dcmobj, dicomdir
-                .toFileID(f));
-
-        DicomObject rec = ((DicomDirWriter) dicomdir).addPatientRecord(patrec);
-        rec = ((DicomDirWriter) dicomdir).addStudyRecord(rec, styrec);
-        rec = ((DicomDirWriter) dicomdir).addSeriesRecord(rec, serrec);
-        ((DicomDirWriter) dicomdir).addChildRecord(rec, instrec);
+        dicomdir.addInstance(dcmobj, f);
         System.out.print('.');
-        return 1;
     }
 
-    public void writeCeph1Dcm() {
+    public void writeCeph1Dcm() throws IOException {
         if (ceph1 != null)
             ceph1.writeDCM();
     }
 
-    public void writeCeph2Dcm() {
+    public void writeCeph2Dcm() throws IOException {
         if (ceph2 != null)
             ceph2.writeDCM();
     }
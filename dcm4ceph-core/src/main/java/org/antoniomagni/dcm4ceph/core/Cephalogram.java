@@ -24,23 +24,37 @@
 
 package org.antoniomagni.dcm4ceph.core;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
 
-import javax.imageio.stream.FileImageInputStream;
-
+import org.antoniomagni.dcm4ceph.util.BufferPool;
+import org.antoniomagni.dcm4ceph.util.ChecksumChannel;
 import org.antoniomagni.dcm4ceph.util.DcmUtils;
+import org.antoniomagni.dcm4ceph.util.DefaultsRegistry;
+import org.antoniomagni.dcm4ceph.util.DicomTemplate;
+import org.antoniomagni.dcm4ceph.util.EncapsulatedPixelData;
 import org.antoniomagni.dcm4ceph.util.FileUtils;
 import org.antoniomagni.dcm4ceph.util.Log;
+import org.antoniomagni.dcm4ceph.util.PooledOutputStream;
+import org.antoniomagni.dcm4ceph.util.WritePolicy;
 import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
@@ -68,7 +82,6 @@ import org.dcm4che2.iod.value.PixelRepresentation;
 import org.dcm4che2.iod.value.PositionerType;
 import org.dcm4che2.iod.value.PresentationIntentType;
 import org.dcm4che2.iod.value.TableType;
-import org.dcm4che2.util.UIDUtils;
 import org.devlib.schmidt.imageinfo.ImageInfo;
 
 /**
@@ -84,6 +97,24 @@ public class Cephalogram extends DXImage {
 
     private final int minimumAllowedDPI = 128;
 
+    // The first block of the image, kept from the digest read or sniffed.
+    private ByteBuffer headerBlock;
+
+    private String contentDigest;
+
+    /**
+     * The largest fragment that fits in an item: item lengths are even, and
+     * written as an int.
+     */
+    public static final int MAX_FRAGMENT_SIZE =
+            EncapsulatedPixelData.MAX_FRAGMENT_SIZE;
+
+    private int fragmentSize;
+
+    private boolean offsetTable;
+
+    private WritePolicy writePolicy = WritePolicy.DEFAULT;
+
     // private int DPI = 300;
 
     private File imageFile;
@@ -101,6 +132,12 @@ public class Cephalogram extends DXImage {
             ImageTypeValue1.ORIGINAL, ImageTypeValue2.SECONDARY,
             ImageTypeValue3.NULL };
 
+    /**
+     * The attributes which are the same for all cephalograms. Must be
+     * declared after the image type constants it uses.
+     */
+    private static final DicomTemplate TEMPLATE = makeTemplate();
+
     public Cephalogram(File cephFile) {
         this(cephFile, null);
     }
@@ -128,25 +165,45 @@ public class Cephalogram extends DXImage {
      * Perform initialization procedure.
      * <p>
      * This method sets the various attributes to values which are independent
-     * the instance of the class.
+     * the instance of the class. These are copied from a template built once,
+     * only the UIDs and the series date are generated for each instance.
+     *
+     * @see #initInvariants()
      */
     public void init() {
-        super.init();
+        TEMPLATE.copyTo(dcmobj);
 
         // Load defaults first.
-        instanceProperties = FileUtils.loadProperties(this.getClass(),
+        instanceProperties = DefaultsRegistry.getDefaults(Cephalogram.class,
                 "ceph_defaults.properties");
 
         // Set SOP stuff.
-        getSopCommonModule().setSOPClassUID(
-                UID.DigitalXRayImageStorageForProcessing);
-        getSopCommonModule().setSOPInstanceUID(UIDUtils.createUID());
+        getSopCommonModule().setSOPInstanceUID(DcmUtils.createUID());
 
         // Set the Series (DX and General) Module Attributes
-        getDXSeriesModule().setModality(Modality.DX);
         if (this.getSeriesUID() == null)
             this.setSeriesUID(makeInstanceUID());
         getDXSeriesModule().setSeriesDateTime(new Date());
+    }
+
+    private static DicomTemplate makeTemplate() {
+        Cephalogram ceph = new Cephalogram(new BasicDicomObject());
+        ceph.initInvariants();
+        return new DicomTemplate(ceph.dcmobj);
+    }
+
+    /**
+     * Set the attributes which are the same for all cephalograms.
+     */
+    private void initInvariants() {
+        super.init();
+
+        // Set SOP stuff.
+        getSopCommonModule().setSOPClassUID(
+                UID.DigitalXRayImageStorageForProcessing);
+
+        // Set the Series (DX and General) Module Attributes
+        getDXSeriesModule().setModality(Modality.DX);
         getDXSeriesModule().setPresentationIntentType(
                 PresentationIntentType.PROCESSING);
 
@@ -199,27 +256,170 @@ public class Cephalogram extends DXImage {
         // TODO find out if scanned cephs are considered secondary.
     }
 
+    /**
+     * Derive the UIDs of this cephalogram from the content of its image.
+     * <p>
+     * The image is read once to compute its SHA-1 digest. The Study UID is
+     * derived from the patient ID, study ID, study date and accession number,
+     * so that cephalograms of the same study converted separately end up in
+     * the same study; if neither the patient ID nor the study ID is set, the
+     * image gets a study of its own, derived from its digest, rather than
+     * sharing one with every other unidentified image. The SOP Instance and
+     * Series UIDs are derived from the digest and the study key. All are name
+     * based UIDs (see {@link DcmUtils#createNameBasedUID(String)}), so
+     * converting the same image with the same properties again gives the
+     * same UIDs.
+     * <p>
+     * The digest needs a read of its own: the UIDs are in the header, which
+     * is written before the pixel data is transferred. The first block read
+     * is kept and used to find the image header when writing; the pixel data
+     * is then copied by the kernel. Must be called before the UIDs are
+     * referenced by other objects.
+     *
+     * @throws IOException
+     *             If the image cannot be read. The UIDs are left unchanged.
+     */
+    public void useContentUIDs() throws IOException {
+        FileInputStream in = new FileInputStream(imageFile);
+        try {
+            useContentUIDs(in.getChannel());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Same as {@link #useContentUIDs()}, reading the image from an open
+     * channel, which is left open.
+     *
+     * @param channel
+     *            The channel of the image file.
+     * @throws IOException
+     */
+    void useContentUIDs(FileChannel channel) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer buf = BufferPool.getIOPool().acquire();
+        try {
+            channel.position(0);
+            ByteBuffer first = null;
+            while (channel.read(buf) != -1) {
+                buf.flip();
+                if (first == null) {
+                    first = ByteBuffer.allocate(Math.min(BufferPool
+                            .getSniffPool().getBufferSize(), buf.remaining()));
+                    ByteBuffer dup = buf.duplicate();
+                    dup.limit(first.capacity());
+                    first.put(dup);
+                    first.flip();
+                }
+                md.update(buf);
+                buf.clear();
+            }
+            headerBlock = first;
+        } finally {
+            BufferPool.getIOPool().release(buf);
+        }
+        contentDigest = FileUtils.toHexString(md.digest());
+
+        String patientID = instanceProperties.getProperty("patientID");
+        String studyID = instanceProperties.getProperty("studyID");
+        String studyKey;
+        if (isEmpty(patientID) && isEmpty(studyID))
+            studyKey = DcmUtils.nameKey("image", contentDigest);
+        else
+            studyKey = DcmUtils.nameKey(patientID, studyID,
+                    instanceProperties.getProperty("studyDate"),
+                    instanceProperties.getProperty("accessionNumber"));
+        String instanceKey = DcmUtils.nameKey(contentDigest, studyKey);
+
+        setStudyUID(DcmUtils.createNameBasedUID(DcmUtils.nameKey("study",
+                studyKey)));
+        setSeriesUID(DcmUtils.createNameBasedUID(DcmUtils.nameKey("series",
+                instanceKey)));
+        setUID(DcmUtils.createNameBasedUID(DcmUtils.nameKey("sop",
+                instanceKey)));
+    }
+
+    private static boolean isEmpty(String s) {
+        return s == null || s.trim().length() == 0;
+    }
+
+    /**
+     * The SHA-1 digest of the image, as a hexadecimal string.
+     *
+     * @return The digest, or null if {@link #useContentUIDs()} was not
+     *         called.
+     */
+    public String getContentDigest() {
+        return contentDigest;
+    }
+
+    /**
+     * Read the first block of the image, from which its header is parsed.
+     * <p>
+     * Does nothing if the block was kept by {@link #useContentUIDs()}. Used
+     * by {@link ConversionPipeline} to read headers in their own stage; the
+     * channel is left open for the following stages.
+     *
+     * @param imageChannel
+     *            The channel of the image file.
+     * @throws IOException
+     */
+    void sniff(FileChannel imageChannel) throws IOException {
+        if (headerBlock != null)
+            return;
+
+        ByteBuffer header = ByteBuffer.allocate(BufferPool.getSniffPool()
+                .getBufferSize());
+        imageChannel.read(header, 0);
+        header.flip();
+        headerBlock = header;
+    }
+
     /**
      * Prepare object for writing.
      * <p>
      * This method sets the various DICOM attributes that are specific to this
-     * Cephalogram instance.
+     * Cephalogram instance. The image header is parsed from the block kept
+     * by {@link #sniff(FileChannel)} or {@link #useContentUIDs()}, if any,
+     * or read from the passed channel, which is left open so that the pixel
+     * data can be streamed from it afterwards.
      *
      * @see #setFromProperties(Properties)
-     * @see #setImageAttributes(FileImageInputStream)
+     * @see #setImageAttributes(ByteBuffer, FileChannel)
      *
      */
-    private void prepare() {
+    void prepare(FileChannel imageChannel) throws IOException {
         setFromProperties(instanceProperties);
-        try {
-            setImageAttributes(new FileImageInputStream(imageFile));
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+
+        if (headerBlock != null) {
+            // Parse a copy of the block kept from the digest read: ImageInfo
+            // compacts and refills its buffer when a header crosses its end.
+            ByteBuffer header = ByteBuffer.allocate(headerBlock.remaining());
+            header.put(headerBlock.duplicate());
+            header.flip();
+            imageChannel.position(header.limit());
+            setImageAttributes(header, imageChannel);
+        } else {
+            // The header is parsed from this one bulk read, unless it is
+            // larger.
+            ByteBuffer header = BufferPool.getSniffPool().acquire();
+            try {
+                imageChannel.position(0);
+                imageChannel.read(header);
+                header.flip();
+                setImageAttributes(header, imageChannel);
+            } finally {
+                BufferPool.getSniffPool().release(header);
+            }
         }
+
         DcmUtils.ensureUID(dcmobj, Tag.StudyInstanceUID);
         DcmUtils.ensureUID(dcmobj, Tag.SeriesInstanceUID);
         DcmUtils.ensureUID(dcmobj, Tag.SOPInstanceUID);
@@ -417,6 +617,15 @@ public class Cephalogram extends DXImage {
         return getSopCommonModule().getSOPInstanceUID();
     }
 
+    /**
+     * Set the unique identifier of this image.
+     *
+     * @param uid
+     */
+    public void setUID(String uid) {
+        getSopCommonModule().setSOPInstanceUID(uid);
+    }
+
     /**
      * Orientation of patient with respect to detector.
      * <p>
@@ -664,13 +873,14 @@ public class Cephalogram extends DXImage {
      * have the same name as the input image file of this Cephalogram, with its
      * extension replaced with .dcm and in the same folder.
      *
-     * @return The {@link File} this object was written to, or null if the
-     *         object was not written because of its invalidiy
+     * @return The {@link File} this object was written to.
+     * @throws IOException
+     *             If the image cannot be read or the file written.
      *
-     * @see #validate(ValidationContext, ValidationResult)
+     * @see #writeDCM(File)
      *
      */
-    public File writeDCM() {
+    public File writeDCM() throws IOException {
         return writeDCM(getDCMFile());
     }
 
@@ -684,10 +894,12 @@ public class Cephalogram extends DXImage {
      *            The new filename of the file. Can be {@code null} in which
      *            case the the value returne by {@link #getDCMFileName()} will
      *            be used.
-     * @return The {@link File} this object was written to, or null if the
-     *         object was not written because of its invalidiy
+     * @return The {@link File} this object was written to.
+     * @throws IOException
+     *             If the image cannot be read or the file written.
+     * @see #writeDCM(File)
      */
-    public File writeDCM(String path, String filename) {
+    public File writeDCM(String path, String filename) throws IOException {
         if (filename == null)
             filename = getDCMFileName();
         return writeDCM(new File(path + File.separator + filename));
@@ -696,26 +908,152 @@ public class Cephalogram extends DXImage {
     /**
      * Write this Cephalogram in a DICOM .dcm file.
      * <p>
-     * Before writing, checks the validity of the object.
-     *
+     * Before writing, checks the validity of the object. The JPEG stream is
+     * encapsulated as set by {@link #setFragmentSize(int)} and
+     * {@link #setOffsetTable(boolean)}. The file is written under a temporary
+     * name, and put in place as set by {@link #setWritePolicy(WritePolicy)}.
+     * <p>
+     * With {@link WritePolicy.Sync#GROUP} the file is complete when this
+     * method returns, but stays under its temporary name until its group is
+     * committed: call {@link WritePolicy#flush()}, which throws if it could
+     * not be, before reading it. With the other policies it is in place.
      *
      * @param dcmFile
      *            The output file.
      *
-     * @return The {@link File} this object was written to, or null if the
-     *         object was not written because of its invalidiy
+     * @return The {@link File} this object was written to.
+     * @throws IOException
+     *             If the image cannot be read or the file written. The
+     *             temporary file is deleted.
      *
      * @see #validate(ValidationContext, ValidationResult)
      *
      */
-    public File writeDCM(File dcmFile) {
+    public File writeDCM(File dcmFile) throws IOException {
+        return writeDCM(dcmFile, null);
+    }
+
+    /**
+     * Write this Cephalogram in a DICOM .dcm file, computing its CRC-32.
+     *
+     * @param dcmFile
+     *            The output file, or {@code null} for the image name with a
+     *            .dcm extension.
+     * @param crc
+     *            The checksum to update with the bytes written, or
+     *            {@code null}.
+     * @return The {@link File} this object was written to.
+     * @throws IOException
+     * @see #writeDCM(File)
+     * @see ChecksumChannel
+     */
+    public File writeDCM(File dcmFile, CRC32 crc) throws IOException {
         if (dcmFile == null)
-            return writeDCM();
+            dcmFile = getDCMFile();
+        writeDCM(dcmFile, crc, null);
+        return dcmFile;
+    }
+
+    /**
+     * Write this Cephalogram in a DICOM .dcm file, and tell a listener once
+     * it is in place.
+     * <p>
+     * Same as {@link #writeDCM(File, CRC32)}, but an invalid object is
+     * written anyway, and the invalid values returned, as with
+     * {@link #writeDCM(WritableByteChannel)}. The directory of the file is
+     * created if needed.
+     *
+     * @param dcmFile
+     *            The output file, or {@code null} for the image name with a
+     *            .dcm extension.
+     * @param crc
+     *            The checksum to update with the bytes written, or
+     *            {@code null}.
+     * @param listener
+     *            The listener, or {@code null}.
+     * @return The result of the validity check.
+     * @throws IOException
+     *             If the image cannot be read or the file written. The
+     *             temporary file is deleted.
+     * @see WritePolicy#commit(File, File, WritePolicy.Listener)
+     */
+    public ValidationResult writeDCM(File dcmFile, CRC32 crc,
+            WritePolicy.Listener listener) throws IOException {
+        FileInputStream instream = new FileInputStream(imageFile);
+        try {
+            FileChannel inChannel = instream.getChannel();
+            prepare(inChannel);
+            ValidationResult results = check();
+            write(inChannel, dcmFile, crc, listener, null);
+            return results;
+        } finally {
+            instream.close();
+        }
+    }
+
+    /**
+     * Write this Cephalogram as a DICOM Part 10 stream.
+     * <p>
+     * Same as {@link #writeDCM(WritableByteChannel)}, for streams. The stream
+     * is flushed but not closed.
+     *
+     * @param out
+     *            The stream to write to, for instance a socket or a ZIP
+     *            entry.
+     * @return The result of the validity check.
+     * @throws IOException
+     *             If the image cannot be read or the stream written.
+     */
+    public ValidationResult writeDCM(OutputStream out) throws IOException {
+        // Use the channel of a file, so that the pixel data is still copied
+        // by the kernel.
+        ValidationResult results = writeDCM(FileUtils.newChannel(out));
+        out.flush();
+        return results;
+    }
+
+    /**
+     * Write this Cephalogram as a DICOM Part 10 stream.
+     * <p>
+     * Before writing, checks the validity of the object. An invalid object is
+     * written anyway, and the invalid values returned. The header is written
+     * through a buffer taken from {@link BufferPool#getIOPool()}, and the JPEG
+     * stream is then transferred from the image to the channel, by the kernel
+     * where the channel allows it. The channel is not closed.
+     *
+     * @param out
+     *            The channel to write to.
+     * @return The result of the validity check.
+     * @throws IOException
+     *             If the image cannot be read or the channel written.
+     */
+    public ValidationResult writeDCM(WritableByteChannel out)
+            throws IOException {
+        // Open the image once: the header is sniffed from the first buffered
+        // block and the pixel data is then transferred from the same channel.
+        FileInputStream instream = new FileInputStream(imageFile);
+        try {
+            FileChannel inChannel = instream.getChannel();
+
+            // First prepare the dicom object.
+            prepare(inChannel);
 
-        // First prepare the dicom object.
-        prepare();
+            // Then verify it.
+            ValidationResult results = check();
 
-        // Then verify it.
+            write(inChannel, out);
+            return results;
+        } finally {
+            instream.close();
+        }
+    }
+
+    /**
+     * Check the validity of the prepared object, logging the invalid values.
+     *
+     * @return The result of the validity check.
+     */
+    ValidationResult check() {
         ValidationResult results = new ValidationResult();
         validate(new ValidationContext(), results);
 
@@ -723,42 +1061,174 @@ public class Cephalogram extends DXImage {
             Log.err("Dicom object did not pass validity tests.");
             System.err.println(results.getInvalidValues().toString());
         }
+        return results;
+    }
 
-        int bufferSize = 8192;
+    /**
+     * Write the prepared object.
+     *
+     * @param inChannel
+     *            The channel of the image file, to read the pixel data from.
+     * @param out
+     *            The channel to write to. Neither channel is closed.
+     * @throws IOException
+     */
+    void write(FileChannel inChannel, WritableByteChannel out)
+            throws IOException {
+        PooledOutputStream pooled = new PooledOutputStream(out, BufferPool
+                .getIOPool());
+        try {
+            writeEncapsulated(new DicomOutputStream(pooled), inChannel, out);
+        } finally {
+            pooled.release();
+        }
+    }
+
+    /**
+     * Write the prepared object to a temporary file, and commit it as set by
+     * {@link #setWritePolicy(WritePolicy)}.
+     *
+     * @param inChannel
+     *            The channel of the image file, to read the pixel data from.
+     *            It is not closed.
+     * @param dcmFile
+     *            The output file, or {@code null} for the image name with a
+     *            .dcm extension. Its directory is created if needed.
+     * @param crc
+     *            The checksum to update with the bytes written, or
+     *            {@code null}.
+     * @param listener
+     *            The listener, or {@code null}.
+     * @param task
+     *            The future of the conversion, or {@code null}. If it is
+     *            cancelled the output is closed, so that a running write
+     *            fails at once, and the file is not committed.
+     * @throws IOException
+     *             If the file cannot be written. The temporary file is
+     *             deleted.
+     * @throws CancellationException
+     *             If the task was cancelled.
+     */
+    void write(FileChannel inChannel, File dcmFile, CRC32 crc,
+            WritePolicy.Listener listener, final CompletableFuture<?> task)
+            throws IOException {
+        if (dcmFile == null)
+            dcmFile = getDCMFile();
+        File dir = dcmFile.getAbsoluteFile().getParentFile();
+        if (dir != null)
+            dir.mkdirs();
 
+        File tmpFile = FileUtils.getTempFile(dcmFile);
+        boolean written = false;
         try {
-            FileOutputStream fos = new FileOutputStream(dcmFile);
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            DicomOutputStream dos = new DicomOutputStream(bos);
-
-            System.out.println("Writing to file " + dcmFile.getCanonicalPath());
-
-            FileImageInputStream instream = new FileImageInputStream(imageFile);
-
-            dos.writeDicomFile(dcmobj);
-            dos.writeHeader(Tag.PixelData, VR.OB, -1);
-            dos.writeHeader(Tag.Item, null, 0);
-            int jpgLen = (int) instream.length();
-            dos.writeHeader(Tag.Item, null, (jpgLen + 1) & ~1);
-            byte[] b = new byte[bufferSize];
-            int r;
-            while ((r = instream.read(b)) > 0) {
-                dos.write(b, 0, r);
-            }
-            if ((jpgLen & 1) != 0) {
-                dos.write(0);
+            final FileOutputStream fos = new FileOutputStream(tmpFile);
+            try {
+                if (task != null)
+                    task.whenComplete(new BiConsumer<Object, Throwable>() {
+                        public void accept(Object r, Throwable t) {
+                            if (task.isCancelled())
+                                close(fos);
+                        }
+                    });
+                if (crc != null)
+                    write(inChannel, new ChecksumChannel(fos.getChannel(), crc));
+                else
+                    write(inChannel, fos.getChannel());
+            } finally {
+                fos.close();
             }
-            dos.writeHeader(Tag.SequenceDelimitationItem, null, 0);
-            dos.close();
-            instream.close();
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            written = task == null || !task.isCancelled();
         } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            if (task != null && task.isCancelled())
+                throw new CancellationException("Conversion of " + imageFile
+                        + " cancelled.");
+            throw e;
+        } finally {
+            if (!written)
+                tmpFile.delete();
         }
-        return dcmFile;
+        if (!written)
+            throw new CancellationException("Conversion of " + imageFile
+                    + " cancelled.");
+
+        writePolicy.commit(tmpFile, dcmFile, listener);
+    }
+
+    private static void close(FileOutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // The conversion is cancelled anyway.
+        }
+    }
+
+    /**
+     * Write the dataset, then the JPEG stream as encapsulated pixel data.
+     */
+    private void writeEncapsulated(DicomOutputStream dos,
+            FileChannel inChannel, WritableByteChannel out) throws IOException {
+        dos.writeDicomFile(dcmobj);
+        dos.writeHeader(Tag.PixelData, VR.OB, -1);
+
+        // The items are written straight to the channel, after flushing the
+        // headers written so far, so that the kernel can copy the fragments.
+        dos.flush();
+        EncapsulatedPixelData.write(inChannel, out, fragmentSize, offsetTable);
+    }
+
+    /**
+     * Set the size of the fragments the JPEG stream is split into.
+     * <p>
+     * Each fragment is written as one item of the encapsulated pixel data,
+     * so that a reader can start decoding before the whole stream arrived.
+     * Odd sizes are rounded up, since items have an even length.
+     *
+     * @param fragmentSize
+     *            The size of the fragments in bytes, or 0 to write the
+     *            stream as one fragment. The stream is split in fragments of
+     *            {@link #MAX_FRAGMENT_SIZE} anyway if it is larger.
+     */
+    public void setFragmentSize(int fragmentSize) {
+        if (fragmentSize < 0)
+            throw new IllegalArgumentException("Negative fragment size: "
+                    + fragmentSize);
+        this.fragmentSize = fragmentSize > MAX_FRAGMENT_SIZE ? MAX_FRAGMENT_SIZE
+                : (fragmentSize + 1) & ~1;
+    }
+
+    public int getFragmentSize() {
+        return fragmentSize;
+    }
+
+    /**
+     * Write a Basic Offset Table, rather than an empty first item.
+     * <p>
+     * The table has one entry per frame, the offset of its first fragment.
+     * A cephalogram has one frame, so its table holds offset 0.
+     *
+     * @param offsetTable
+     */
+    public void setOffsetTable(boolean offsetTable) {
+        this.offsetTable = offsetTable;
+    }
+
+    public boolean isOffsetTable() {
+        return offsetTable;
+    }
+
+    /**
+     * Set how {@link #writeDCM(File)} puts the written file in place.
+     *
+     * @param writePolicy
+     *            The policy. {@link WritePolicy#DEFAULT} renames the
+     *            complete file atomically, without syncing it.
+     */
+    public void setWritePolicy(WritePolicy writePolicy) {
+        this.writePolicy = writePolicy;
+    }
+
+    public WritePolicy getWritePolicy() {
+        return writePolicy;
     }
 
     public File getDCMFile() {
@@ -811,13 +1281,13 @@ public class Cephalogram extends DXImage {
         return c;
     }
 
-    private void setImageAttributes(FileImageInputStream fiis)
+    private void setImageAttributes(ByteBuffer header, FileChannel imageChannel)
             throws IOException {
 
         ImageInfo ii = new ImageInfo();
-        ii.setInput(fiis);
+        ii.setInput(header, imageChannel);
         ii.setDetermineImageNumber(true); // default is false
-        ii.setCollectComments(true); // default is false
+        ii.setCollectComments(false); // comments are not used
         if (!ii.check()) {
             Log.err("Not a supported image file format.");
             return;
@@ -848,8 +1318,6 @@ public class Cephalogram extends DXImage {
         getDXDetectorModule().setImagerPixelSpacing(imagerPixelSpacing);
         getDXDetectorModule().setPixelSpacing(imagerPixelSpacing);
 
-        fiis.seek(0);
-
     }
 
     private void setOrientation(float prim, float sec, ViewCode viewcode) {
@@ -868,7 +1336,7 @@ public class Cephalogram extends DXImage {
     }
 
     private String makeInstanceUID() {
-        return UIDUtils.createUID();
+        return DcmUtils.createUID();
     }
 
     public String toString() {
@@ -0,0 +1,295 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+package org.antoniomagni.dcm4ceph.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.antoniomagni.dcm4ceph.util.WritePolicy;
+import org.dcm4che2.iod.validation.ValidationResult;
+
+/**
+ * Converts cephalograms to DICOM files, without blocking the caller.
+ * <p>
+ * {@link #convertAsync(File, File, File)} returns at once with a
+ * {@link CompletableFuture}, which completes with the written file and the
+ * result of its validity check, or exceptionally with the
+ * {@link IOException} that stopped the conversion.
+ * <p>
+ * Cancelling the future stops the conversion: if it has not started it is
+ * skipped, otherwise its output is closed, so the write fails at once, and
+ * the temporary file is deleted. A timeout is applied by cancelling the
+ * future when it expires.
+ * <p>
+ * The conversions run on the executor passed to the constructor, or on a
+ * shared pool of daemon threads, one per processor.
+ * <p>
+ * With {@link WritePolicy.Sync#GROUP} a future completes once the group of
+ * its file is committed. The converter flushes the policy whenever its last
+ * running conversion is written, so the files are grouped while conversions
+ * keep coming, and no future waits for files that are not.
+ *
+ * @author afm
+ *
+ */
+public class CephalogramConverter {
+
+    private static ExecutorService defaultExecutor;
+
+    private final Executor executor;
+
+    private boolean contentUIDs;
+
+    private int fragmentSize;
+
+    private boolean offsetTable;
+
+    private WritePolicy writePolicy = WritePolicy.DEFAULT;
+
+    // The asynchronous conversions submitted and not written yet.
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * The outcome of a conversion.
+     */
+    public static class Result {
+
+        private final File file;
+
+        private final ValidationResult validationResult;
+
+        Result(File file, ValidationResult validationResult) {
+            this.file = file;
+            this.validationResult = validationResult;
+        }
+
+        /**
+         * @return The written file.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return The result of the validity check. An invalid object is
+         *         written anyway.
+         */
+        public ValidationResult getValidationResult() {
+            return validationResult;
+        }
+
+        public boolean isValid() {
+            return validationResult.isValid();
+        }
+    }
+
+    /**
+     * Create a converter running on a shared pool of daemon threads.
+     */
+    public CephalogramConverter() {
+        this(getDefaultExecutor());
+    }
+
+    /**
+     * Create a converter.
+     *
+     * @param executor
+     *            The executor to run the conversions on. As conversions block
+     *            on I/O, it should not be the common fork/join pool.
+     */
+    public CephalogramConverter(Executor executor) {
+        this.executor = executor;
+    }
+
+    private static synchronized ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newFixedThreadPool(Runtime
+                    .getRuntime().availableProcessors(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "dcm4ceph-converter-"
+                            + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * @param contentUIDs
+     * @see Cephalogram#useContentUIDs()
+     */
+    public void setContentUIDs(boolean contentUIDs) {
+        this.contentUIDs = contentUIDs;
+    }
+
+    /**
+     * @param fragmentSize
+     * @see Cephalogram#setFragmentSize(int)
+     */
+    public void setFragmentSize(int fragmentSize) {
+        this.fragmentSize = fragmentSize;
+    }
+
+    /**
+     * @param offsetTable
+     * @see Cephalogram#setOffsetTable(boolean)
+     */
+    public void setOffsetTable(boolean offsetTable) {
+        this.offsetTable = offsetTable;
+    }
+
+    /**
+     * Set how the written files are put in place. A conversion completes
+     * once its file is in place, so with group commit it completes when its
+     * group is committed, at the latest when no other conversion is running.
+     *
+     * @param writePolicy
+     */
+    public void setWritePolicy(WritePolicy writePolicy) {
+        this.writePolicy = writePolicy;
+    }
+
+    /**
+     * Convert a cephalogram to a DICOM file.
+     *
+     * @param input
+     *            The image.
+     * @param properties
+     *            The properties of the image, or {@code null} for the
+     *            properties file next to it.
+     * @param target
+     *            The file to write, or {@code null} for the image name with
+     *            a .dcm extension.
+     * @return A future completing with the written file, once it is in
+     *         place.
+     */
+    public CompletableFuture<Result> convertAsync(final File input,
+            final File properties, final File target) {
+        final CompletableFuture<Result> future = new CompletableFuture<Result>();
+        running.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (!future.isDone())
+                            convert(input, properties, target, future);
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    } finally {
+                        done();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            done();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Called when an asynchronous conversion is written. The last one running
+     * commits the files waiting for their group.
+     */
+    private void done() {
+        if (running.decrementAndGet() > 0)
+            return;
+        try {
+            writePolicy.flush();
+        } catch (IOException e) {
+            // Reported to the futures of the files.
+        }
+    }
+
+    /**
+     * Convert a cephalogram to a DICOM file on the calling thread.
+     *
+     * @return The written file, once it is in place.
+     * @throws IOException
+     * @see #convertAsync(File, File, File)
+     */
+    public Result convert(File input, File properties, File target)
+            throws IOException {
+        CompletableFuture<Result> future = new CompletableFuture<Result>();
+        convert(input, properties, target, future);
+        try {
+            writePolicy.flush();
+        } catch (IOException e) {
+            // Files of other conversions may have failed: the failure of
+            // this one, if any, is reported to its future.
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    private void convert(File input, File properties, File target,
+            final CompletableFuture<Result> future) throws IOException {
+        Cephalogram ceph = new Cephalogram(input, properties);
+        ceph.setFragmentSize(fragmentSize);
+        ceph.setOffsetTable(offsetTable);
+        ceph.setWritePolicy(writePolicy);
+
+        // The image is opened once, for the digest, the header and the
+        // pixel data.
+        FileChannel channel = FileChannel.open(input.toPath(),
+                StandardOpenOption.READ);
+        try {
+            if (contentUIDs)
+                ceph.useContentUIDs(channel);
+            ceph.prepare(channel);
+            final ValidationResult results = ceph.check();
+            ceph.write(channel, target, null, new WritePolicy.Listener() {
+                public void committed(File target) {
+                    future.complete(new Result(target, results));
+                }
+
+                public void failed(File target, IOException e) {
+                    future.completeExceptionally(e);
+                }
+            }, future);
+        } finally {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,440 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+package org.antoniomagni.dcm4ceph.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.antoniomagni.dcm4ceph.util.WritePolicy;
+import org.dcm4che2.iod.validation.ValidationResult;
+
+/**
+ * A staged conversion pipeline with backpressure.
+ * <p>
+ * Conversion requests are submitted with {@link #submit(File, File, File)}
+ * and pass through four stages, each with its own threads:
+ * <ol>
+ * <li>sniff: the properties are loaded, the image is opened and its first
+ * block read, or the whole image if content UIDs are used;</li>
+ * <li>prepare: the DICOM object is filled from the properties and the image
+ * header;</li>
+ * <li>validate: the object is checked;</li>
+ * <li>write: the object and the pixel data are written and put in place.</li>
+ * </ol>
+ * The image is opened once: its channel and first block are handed from
+ * stage to stage with the request, and the channel is closed once the file
+ * is written or the conversion failed.
+ * The stages are connected by bounded queues. A stage that cannot keep up
+ * fills the queue in front of it, which blocks the stage before, up to
+ * {@link #submit(File, File, File)}: a slow output disk thus throttles the
+ * scanning of the input instead of filling the heap. At most about four
+ * times the queue capacity of conversions are in flight, each holding its
+ * DICOM header, first image block and an open image file only.
+ * <p>
+ * The results are published to a {@link Subscriber}, one call at a time.
+ * A slow subscriber throttles the pipeline as well.
+ *
+ * <pre>
+ * ConversionPipeline pipeline = new ConversionPipeline(16);
+ * pipeline.subscribe(subscriber);
+ * for (File image : images)
+ *     pipeline.submit(image, null, null);
+ * pipeline.close();
+ * </pre>
+ *
+ * @author afm
+ *
+ */
+public class ConversionPipeline {
+
+    /**
+     * Receives the results of a pipeline. Calls are never concurrent.
+     */
+    public interface Subscriber {
+
+        /**
+         * A file was written and is in place.
+         *
+         * @param result
+         */
+        void onNext(CephalogramConverter.Result result);
+
+        /**
+         * A conversion failed. The pipeline goes on with the next one.
+         *
+         * @param input
+         *            The image that could not be converted.
+         * @param e
+         */
+        void onError(File input, Exception e);
+
+        /**
+         * All submitted conversions are done.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The number of requests each queue holds, unless given.
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    // Tells the threads of a stage that no more requests follow.
+    private static final Task END = new Task(null, null, null);
+
+    private final int capacity;
+
+    private int sniffThreads = 1;
+
+    private int prepareThreads = 1;
+
+    private int validateThreads = 1;
+
+    private int writeThreads = 1;
+
+    private boolean contentUIDs;
+
+    private int fragmentSize;
+
+    private boolean offsetTable;
+
+    private WritePolicy writePolicy = WritePolicy.DEFAULT;
+
+    private Subscriber subscriber;
+
+    private Stage first;
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    /**
+     * A conversion going through the stages.
+     */
+    private static class Task {
+
+        final File input;
+
+        final File properties;
+
+        final File target;
+
+        Cephalogram ceph;
+
+        // The image, opened by the sniff stage and closed after the write.
+        FileChannel channel;
+
+        ValidationResult results;
+
+        Task(File input, File properties, File target) {
+            this.input = input;
+            this.properties = properties;
+            this.target = target;
+        }
+
+        void close() {
+            if (channel == null)
+                return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Only read from.
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * The threads taking the requests from one queue.
+     */
+    private abstract class Stage implements Runnable {
+
+        final String name;
+
+        final BlockingQueue<Task> in;
+
+        final int workers;
+
+        final AtomicInteger running;
+
+        Stage next;
+
+        Stage(String name, int workers) {
+            this.name = name;
+            this.in = new ArrayBlockingQueue<Task>(capacity);
+            this.workers = Math.max(1, workers);
+            this.running = new AtomicInteger(this.workers);
+        }
+
+        abstract void process(Task task) throws IOException;
+
+        public void run() {
+            try {
+                for (;;) {
+                    Task task = in.take();
+                    if (task == END)
+                        break;
+                    try {
+                        process(task);
+                    } catch (IOException e) {
+                        task.close();
+                        error(task.input, e);
+                        continue;
+                    } catch (RuntimeException e) {
+                        task.close();
+                        error(task.input, e);
+                        continue;
+                    }
+                    if (next != null)
+                        next.in.put(task);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // The last thread out ends the next stage.
+                if (running.decrementAndGet() == 0)
+                    end();
+            }
+        }
+
+        void end() {
+            if (next == null) {
+                finish();
+                return;
+            }
+            try {
+                for (int i = 0; i < next.workers; i++)
+                    next.in.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public ConversionPipeline() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *            The number of requests each stage queue holds.
+     */
+    public ConversionPipeline(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Set the number of threads of each stage. The default is one each.
+     * Writing is usually the stage worth more threads.
+     *
+     * @param sniff
+     * @param prepare
+     * @param validate
+     * @param write
+     */
+    public void setThreads(int sniff, int prepare, int validate, int write) {
+        this.sniffThreads = sniff;
+        this.prepareThreads = prepare;
+        this.validateThreads = validate;
+        this.writeThreads = write;
+    }
+
+    /**
+     * @param contentUIDs
+     * @see Cephalogram#useContentUIDs()
+     */
+    public void setContentUIDs(boolean contentUIDs) {
+        this.contentUIDs = contentUIDs;
+    }
+
+    /**
+     * @param fragmentSize
+     * @see Cephalogram#setFragmentSize(int)
+     */
+    public void setFragmentSize(int fragmentSize) {
+        this.fragmentSize = fragmentSize;
+    }
+
+    /**
+     * @param offsetTable
+     * @see Cephalogram#setOffsetTable(boolean)
+     */
+    public void setOffsetTable(boolean offsetTable) {
+        this.offsetTable = offsetTable;
+    }
+
+    /**
+     * Set how the written files are put in place. Results are published once
+     * their file is in place.
+     *
+     * @param writePolicy
+     */
+    public void setWritePolicy(WritePolicy writePolicy) {
+        this.writePolicy = writePolicy;
+    }
+
+    /**
+     * Start the stages, publishing the results to a subscriber. Must be
+     * called once, before {@link #submit(File, File, File)}.
+     *
+     * @param subscriber
+     * @throws IllegalStateException
+     *             If the pipeline was already started.
+     */
+    public synchronized void subscribe(Subscriber subscriber) {
+        if (this.subscriber != null)
+            throw new IllegalStateException("Pipeline already started.");
+        this.subscriber = subscriber;
+
+        Stage sniff = new Stage("sniff", sniffThreads) {
+            void process(Task task) throws IOException {
+                task.ceph = new Cephalogram(task.input, task.properties);
+                task.channel = FileChannel.open(task.input.toPath(),
+                        StandardOpenOption.READ);
+                if (contentUIDs)
+                    task.ceph.useContentUIDs(task.channel);
+                else
+                    task.ceph.sniff(task.channel);
+            }
+        };
+        Stage prepare = new Stage("prepare", prepareThreads) {
+            void process(Task task) throws IOException {
+                task.ceph.setFragmentSize(fragmentSize);
+                task.ceph.setOffsetTable(offsetTable);
+                task.ceph.prepare(task.channel);
+            }
+        };
+        Stage validate = new Stage("validate", validateThreads) {
+            void process(Task task) {
+                task.results = task.ceph.check();
+            }
+        };
+        Stage write = new Stage("write", writeThreads) {
+            void process(Task task) throws IOException {
+                try {
+                    write(task);
+                } finally {
+                    task.close();
+                }
+            }
+        };
+        sniff.next = prepare;
+        prepare.next = validate;
+        validate.next = write;
+        first = sniff;
+
+        start(sniff);
+        start(prepare);
+        start(validate);
+        start(write);
+    }
+
+    private void start(Stage stage) {
+        for (int i = 1; i <= stage.workers; i++) {
+            Thread t = new Thread(stage, "dcm4ceph-" + stage.name + "-" + i);
+            t.setDaemon(true);
+            threads.add(t);
+            t.start();
+        }
+    }
+
+    /**
+     * Submit a conversion, waiting while the first stage is full.
+     *
+     * @param input
+     *            The image.
+     * @param properties
+     *            The properties of the image, or {@code null} for the
+     *            properties file next to it.
+     * @param target
+     *            The file to write, or {@code null} for the image name with
+     *            a .dcm extension.
+     * @throws InterruptedException
+     * @throws IllegalStateException
+     *             If the pipeline was not started.
+     */
+    public void submit(File input, File properties, File target)
+            throws InterruptedException {
+        if (first == null)
+            throw new IllegalStateException("Pipeline not started.");
+        first.in.put(new Task(input, properties, target));
+    }
+
+    /**
+     * Tell the pipeline that no more conversions follow, and wait until the
+     * submitted ones are done and {@link Subscriber#onComplete()} was called.
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        if (first == null)
+            throw new IllegalStateException("Pipeline not started.");
+        for (int i = 0; i < first.workers; i++)
+            first.in.put(END);
+        for (Thread t : threads)
+            t.join();
+    }
+
+    private void write(final Task t) throws IOException {
+        t.ceph.setWritePolicy(writePolicy);
+        t.ceph.write(t.channel, t.target, null, new WritePolicy.Listener() {
+            public void committed(File target) {
+                next(new CephalogramConverter.Result(target, t.results));
+            }
+
+            public void failed(File target, IOException e) {
+                error(t.input, e);
+            }
+        }, null);
+    }
+
+    /**
+     * Called by the last write thread, once the write stage is drained.
+     */
+    private void finish() {
+        try {
+            writePolicy.flush();
+        } catch (IOException e) {
+            // Reported to the listeners of the files.
+        }
+        synchronized (this) {
+            subscriber.onComplete();
+        }
+    }
+
+    private synchronized void next(CephalogramConverter.Result result) {
+        subscriber.onNext(result);
+    }
+
+    private synchronized void error(File input, Exception e) {
+        subscriber.onError(input, e);
+    }
+
+}
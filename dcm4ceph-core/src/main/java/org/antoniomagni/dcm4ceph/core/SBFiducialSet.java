@@ -24,17 +24,27 @@
 
 package org.antoniomagni.dcm4ceph.core;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
 
+import org.antoniomagni.dcm4ceph.util.BufferPool;
+import org.antoniomagni.dcm4ceph.util.ChecksumChannel;
 import org.antoniomagni.dcm4ceph.util.DcmUtils;
+import org.antoniomagni.dcm4ceph.util.DefaultsRegistry;
 import org.antoniomagni.dcm4ceph.util.FileUtils;
+import org.antoniomagni.dcm4ceph.util.PooledOutputStream;
+import org.antoniomagni.dcm4ceph.util.WritePolicy;
 import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.Tag;
 import org.dcm4che2.data.UID;
@@ -49,7 +59,6 @@ import org.dcm4che2.iod.validation.ValidationContext;
 import org.dcm4che2.iod.validation.ValidationResult;
 import org.dcm4che2.iod.value.Modality;
 import org.dcm4che2.iod.value.ShapeType;
-import org.dcm4che2.util.UIDUtils;
 
 /**
  * Reprsents a set of SB corner fiducials in DICOM format.
@@ -75,6 +84,8 @@ public class SBFiducialSet extends SpatialFiducials {
 
     private Properties fiducialProperties = new Properties();
 
+    private WritePolicy writePolicy = WritePolicy.DEFAULT;
+
     /**
      * The Fiducial Identifier (0070,03100) and and Fiducial Description
      * (0070,031A) in an array.
@@ -199,7 +210,7 @@ public class SBFiducialSet extends SpatialFiducials {
         fiducialProperties = loadDefaults();
 
         getSopCommonModule().setSOPClassUID(UID.SpatialFiducialsStorage);
-        getSopCommonModule().setSOPInstanceUID(UIDUtils.createUID());
+        getSopCommonModule().setSOPInstanceUID(DcmUtils.createUID());
 
         getSpatialFiducialsSeriesModule().setModality(Modality.FID);
 
@@ -445,13 +456,48 @@ public class SBFiducialSet extends SpatialFiducials {
     }
 
     public void setStudyUID(String uid) {
-        getGeneralStudyModule().setStudyID(uid);
+        getGeneralStudyModule().setStudyInstanceUID(uid);
     }
 
     public String getUID() {
         return getSopCommonModule().getSOPInstanceUID();
     }
 
+    public void setUID(String uid) {
+        getSopCommonModule().setSOPInstanceUID(uid);
+    }
+
+    /**
+     * Derive the UIDs of this fiducial set from its study and properties.
+     * <p>
+     * The SOP Instance and Series UIDs are name based UIDs (see
+     * {@link DcmUtils#createNameBasedUID(String)}) of the Study UID, the SOP
+     * Instance UIDs of the referenced images and the fiducial properties,
+     * defaults included, so writing the same set again gives the same UIDs,
+     * and sets of other images get other UIDs even with the same fiducial
+     * file.
+     * 
+     * @param studyUID
+     *            The Study UID, which should itself be derived from content.
+     */
+    public void useContentUIDs(String studyUID) {
+        List<String> values = new ArrayList<String>();
+        values.add(studyUID);
+        values.add(String.valueOf(refimages.length));
+        for (int i = 0; i < refimages.length; i++)
+            values.add(refimages[i].getReferencedSOPInstanceUID());
+        for (String name : new TreeSet<String>(fiducialProperties
+                .stringPropertyNames())) {
+            values.add(name);
+            values.add(fiducialProperties.getProperty(name));
+        }
+        String key = DcmUtils.nameKey(values.toArray(new String[values
+                .size()]));
+        setStudyUID(studyUID);
+        setSeriesUID(DcmUtils.createNameBasedUID("series|fiducials|" + key));
+        setUID(DcmUtils.createNameBasedUID("sop|fiducials|" + key));
+    }
+
     // TODO find a way to compute the coordinates from the distances.
     public void setDistance12(float d) {
 
@@ -604,12 +650,44 @@ public class SBFiducialSet extends SpatialFiducials {
 
     }
 
+    /**
+     * Get the default fiducial properties.
+     * <p>
+     * The defaults are parsed once per process; each call returns a new view
+     * on them, which can be changed freely.
+     * 
+     * @see DefaultsRegistry#getDefaults(Class, String)
+     */
     private Properties loadDefaults() {
-        return FileUtils.loadProperties(this.getClass(),
+        return DefaultsRegistry.getDefaults(SBFiducialSet.class,
                 "fiducial_defaults.properties");
     }
 
-    public File writeDCM() {
+    /**
+     * Set how {@link #writeDCM(File)} puts the written file in place.
+     * 
+     * @param writePolicy
+     *            The policy. {@link WritePolicy#DEFAULT} renames the
+     *            complete file atomically, without syncing it.
+     */
+    public void setWritePolicy(WritePolicy writePolicy) {
+        this.writePolicy = writePolicy;
+    }
+
+    public WritePolicy getWritePolicy() {
+        return writePolicy;
+    }
+
+    /**
+     * Write this FiducialSet in a DICOM .dcm file next to its properties
+     * file.
+     * 
+     * @return The {@link File} this object was written to, or null if the
+     *         object was not written because of its invalidity.
+     * @throws IOException
+     * @see #writeDCM(File)
+     */
+    public File writeDCM() throws IOException {
         return writeDCM(FileUtils.getDCMFile(propertiesFile));
     }
 
@@ -625,15 +703,119 @@ public class SBFiducialSet extends SpatialFiducials {
      *            replaced with {@code .dcm}.
      * @return The {@link File} this object was written to, or null if the
      *         object was not written because of its invalidiy
+     * @throws IOException
+     * @see #writeDCM(File)
      */
-    public File writeDCM(String path, String filename) {
+    public File writeDCM(String path, String filename) throws IOException {
         if (filename == null)
             filename = FileUtils.getDCMFileName(this.propertiesFile);
 
         return writeDCM(new File(path + File.separator + filename));
     }
 
-    public File writeDCM(File dcmFile) {
+    /**
+     * Write this FiducialSet in a DICOM .dcm file.
+     * <p>
+     * The file is written under a temporary name, and put in place as set by
+     * {@link #setWritePolicy(WritePolicy)}. With
+     * {@link WritePolicy.Sync#GROUP} it stays under its temporary name until
+     * its group is committed, and {@link WritePolicy#flush()} throws if it
+     * could not be.
+     * 
+     * @param dcmFile
+     *            The output file.
+     * @return The {@link File} this object was written to, or null if the
+     *         object was not written because of its invalidity.
+     * @throws IOException
+     *             If the file cannot be written. The temporary file is
+     *             deleted.
+     */
+    public File writeDCM(File dcmFile) throws IOException {
+        return writeDCM(dcmFile, null);
+    }
+
+    /**
+     * Write this FiducialSet in a DICOM .dcm file, computing its CRC-32.
+     * 
+     * @param dcmFile
+     *            The output file.
+     * @param crc
+     *            The checksum to update with the bytes written, or
+     *            {@code null}.
+     * @return The {@link File} this object was written to, or null if the
+     *         object was not written because of its invalidity.
+     * @throws IOException
+     * @see #writeDCM(File)
+     * @see ChecksumChannel
+     */
+    public File writeDCM(File dcmFile, CRC32 crc) throws IOException {
+        if (!check().isValid())
+            return null;
+
+        File tmpFile = FileUtils.getTempFile(dcmFile);
+        try {
+            FileOutputStream fos = new FileOutputStream(tmpFile);
+            try {
+                if (crc != null)
+                    write(new ChecksumChannel(fos.getChannel(), crc));
+                else
+                    write(fos.getChannel());
+            } finally {
+                fos.close();
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        writePolicy.commit(tmpFile, dcmFile);
+        return dcmFile;
+    }
+
+    /**
+     * Write this FiducialSet as a DICOM Part 10 stream.
+     * <p>
+     * Before writing, checks the validity of the object. As with the file
+     * overloads, an invalid object is not written. The stream is flushed but
+     * not closed.
+     * 
+     * @param out
+     *            The stream to write to, for instance a socket or a ZIP
+     *            entry.
+     * @return The result of the validity check.
+     * @throws IOException
+     *             If the stream cannot be written.
+     */
+    public ValidationResult writeDCM(OutputStream out) throws IOException {
+        ValidationResult results = writeDCM(FileUtils.newChannel(out));
+        out.flush();
+        return results;
+    }
+
+    /**
+     * Write this FiducialSet as a DICOM Part 10 stream.
+     * <p>
+     * Same as {@link #writeDCM(OutputStream)}, for channels. The channel is
+     * not closed.
+     * 
+     * @param out
+     * @return The result of the validity check.
+     * @throws IOException
+     */
+    public ValidationResult writeDCM(WritableByteChannel out)
+            throws IOException {
+        ValidationResult results = check();
+        if (results.isValid())
+            write(out);
+        return results;
+    }
+
+    /**
+     * Prepare the object and check its validity.
+     * 
+     * @return The result of the validity check. The invalid values are
+     *         printed if the object is not valid.
+     */
+    private ValidationResult check() {
         // First prepare the dicom object.
         prepare();
 
@@ -644,30 +826,24 @@ public class SBFiducialSet extends SpatialFiducials {
         if (!results.isValid()) {
             System.err.println("Dicom object did not pass validity tests.");
             System.err.println(results.getInvalidValues().toString());
-            return null;
         }
+        return results;
+    }
 
+    private void write(WritableByteChannel out) throws IOException {
+        PooledOutputStream pooled = new PooledOutputStream(out, BufferPool
+                .getIOPool());
         try {
-            FileOutputStream fos = new FileOutputStream(dcmFile);
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            DicomOutputStream dos = new DicomOutputStream(bos);
-
-            System.out.println("Writing to file " + dcmFile.getCanonicalPath());
-
+            DicomOutputStream dos = new DicomOutputStream(pooled);
             dos.writeDicomFile(dcmobj);
             // dos.writeHeader(Tag.PixelData, VR.OB, -1);
             // dos.writeHeader(Tag.Item, null, 0);
             // dos.writeHeader(Tag.Item, null, (jpgLen + 1) & ~1);
             dos.writeHeader(Tag.SequenceDelimitationItem, null, 0);
-            dos.close();
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            dos.flush();
+        } finally {
+            pooled.release();
         }
-        return dcmFile;
     }
 
     private void prepare() {
@@ -0,0 +1,318 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+
+package org.antoniomagni.dcm4ceph.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the work finished by a batch conversion.
+ * <p>
+ * Each line records one finished input, identified by a key such as its
+ * path, with the files written for it and their CRC-32 and size:
+ *
+ * <pre>
+ * key TAB output TAB crc32 TAB size [TAB output TAB crc32 TAB size ...]
+ * </pre>
+ *
+ * A line is only appended once all of its outputs are complete, so the
+ * journal never points to a partly written file. When the journal is
+ * opened, the recorded keys are loaded in a hash map, so checking whether
+ * an input is done costs no I/O. A last line cut by a crash is dropped.
+ * <p>
+ * The checksums are best computed while the outputs are written, with a
+ * {@link ChecksumChannel}, and passed to {@link #done(String, File[], long[])}.
+ * Appended lines are written to the operating system at once, and synced to
+ * disk by {@link #sync()}, which is meant to be called when the outputs are
+ * synced too, such as after a group commit. Once the batch is complete the
+ * journal is deleted with {@link #delete()}.
+ *
+ * @author afm
+ *
+ */
+public class BatchJournal {
+
+    /**
+     * The name of the journal in the output directory of a batch run.
+     */
+    public static final String DEFAULT_NAME = ".dcm4ceph-journal";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String SEPARATOR = "\t";
+
+    private final File file;
+
+    private final Map<String, String> done = new HashMap<String, String>();
+
+    private final Writer out;
+
+    private final FileChannel channel;
+
+    // Whether lines were appended since the last sync.
+    private boolean dirty;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Open a journal, loading the entries already in it.
+     *
+     * @param file
+     *            The journal file. It is created if it does not exist.
+     * @throws IOException
+     */
+    public BatchJournal(File file) throws IOException {
+        this.file = file;
+        if (file.exists())
+            load();
+        FileOutputStream fos = new FileOutputStream(file, true);
+        channel = fos.getChannel();
+        out = new OutputStreamWriter(fos, UTF8);
+    }
+
+    /**
+     * Read the complete lines, and cut off a last line without line end.
+     */
+    private void load() throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            while (off < bytes.length) {
+                int n = in.read(bytes, off, bytes.length - off);
+                if (n < 0)
+                    break;
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n')
+                continue;
+            String line = new String(bytes, start, i - start, UTF8);
+            int tab = line.indexOf(SEPARATOR);
+            if (tab > 0)
+                done.put(line.substring(0, tab), line.substring(tab + 1));
+            start = i + 1;
+        }
+
+        if (start < bytes.length) {
+            Log.warn("Dropping incomplete last entry of " + file + ".");
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(start);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * @return The journal file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Check whether an input has been recorded as done.
+     *
+     * @param key
+     *            The key the input was recorded with.
+     * @return
+     */
+    public boolean isDone(String key) {
+        lock.lock();
+        try {
+            return done.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of inputs recorded as done.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return done.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record an input as done, reading the outputs to compute their
+     * checksums.
+     *
+     * @param key
+     *            The key of the input, without tabs or line ends.
+     * @param outputs
+     *            The files written for the input. They must be complete.
+     * @throws IOException
+     * @see #done(String, File[], long[])
+     */
+    public void done(String key, File[] outputs) throws IOException {
+        long[] checksums = new long[outputs.length];
+        for (int i = 0; i < outputs.length; i++)
+            checksums[i] = checksum(outputs[i]);
+        done(key, outputs, checksums);
+    }
+
+    /**
+     * Record an input as done.
+     * <p>
+     * The outputs must be complete. The entry is written to the journal
+     * before this method returns, but only synced to disk by {@link #sync()}.
+     *
+     * @param key
+     *            The key of the input, without tabs or line ends.
+     * @param outputs
+     *            The files written for the input.
+     * @param checksums
+     *            The CRC-32 of each output, as computed while writing it.
+     * @throws IOException
+     * @see ChecksumChannel
+     */
+    public void done(String key, File[] outputs, long[] checksums)
+            throws IOException {
+        StringBuffer entry = new StringBuffer();
+        for (int i = 0; i < outputs.length; i++) {
+            if (i > 0)
+                entry.append(SEPARATOR);
+            entry.append(outputs[i].getPath()).append(SEPARATOR);
+            entry.append(Long.toHexString(checksums[i]));
+            entry.append(SEPARATOR).append(outputs[i].length());
+        }
+
+        lock.lock();
+        try {
+            out.write(key + SEPARATOR + entry + "\n");
+            out.flush();
+            dirty = true;
+            done.put(key, entry.toString());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sync the entries appended since the last call to disk. Does nothing if
+     * there are none.
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        lock.lock();
+        try {
+            if (!dirty)
+                return;
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+        // The lines are already written: other threads can append while
+        // this one waits for the disk.
+        channel.force(false);
+    }
+
+    /**
+     * Close the journal.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            out.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close the journal and delete its file.
+     * <p>
+     * Meant to be called once the batch it records is complete, so that a
+     * later run converts the inputs again, rather than skip them. Calling
+     * {@link #close()} afterwards does nothing.
+     *
+     * @throws IOException
+     *             If the file cannot be deleted.
+     */
+    public void delete() throws IOException {
+        lock.lock();
+        try {
+            out.close();
+            done.clear();
+            if (file.exists() && !file.delete())
+                throw new IOException("Cannot delete " + file + ".");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compute the CRC-32 of a file.
+     *
+     * @param f
+     * @return
+     * @throws IOException
+     */
+    public static long checksum(File f) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = BufferPool.getIOPool().acquire();
+        FileChannel channel = new FileInputStream(f).getChannel();
+        try {
+            while (channel.read(buf) >= 0) {
+                buf.flip();
+                crc.update(buf);
+                buf.clear();
+            }
+        } finally {
+            BufferPool.getIOPool().release(buf);
+            channel.close();
+        }
+        return crc.getValue();
+    }
+
+}
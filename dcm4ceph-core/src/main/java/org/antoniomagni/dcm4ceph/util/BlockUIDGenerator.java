@@ -0,0 +1,140 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ * 
+ * Antonio Magni 
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ * 
+ */
+
+package org.antoniomagni.dcm4ceph.util;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fast {@link UIDGenerator} for many threads.
+ * <p>
+ * UIDs are made of an organization root, a prefix unique to this generator
+ * and a counter: <code>root.prefix.counter</code>. Each thread takes a block
+ * of counter values from a shared {@link AtomicLong} and then creates UIDs
+ * from its block without any synchronization.
+ * <p>
+ * With the default root, 2.25, the prefix is a random UUID as described in
+ * DICOM PS3.5 Annex B.2, so no registered root is needed. With any other
+ * root, the prefix is a random positive number, and the organization owning
+ * the root is responsible for the uniqueness of the generated UIDs.
+ * 
+ * @author afm
+ * 
+ */
+public class BlockUIDGenerator implements UIDGenerator {
+
+    /** The root for UIDs derived from a UUID. */
+    public static final String UUID_ROOT = "2.25";
+
+    /** Default number of counter values taken by a thread at once. */
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private static final int MAX_UID_LENGTH = 64;
+
+    // Keep room for at least this many counter digits.
+    private static final int MIN_COUNTER_DIGITS = 9;
+
+    private final String prefix;
+
+    private final int blockSize;
+
+    private final AtomicLong counter = new AtomicLong(1);
+
+    private final ThreadLocal<long[]> block = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            // next value, end of block
+            return new long[2];
+        }
+    };
+
+    /**
+     * Create a generator below the 2.25 root.
+     */
+    public BlockUIDGenerator() {
+        this(UUID_ROOT);
+    }
+
+    /**
+     * Create a generator below the passed root.
+     * 
+     * @param root
+     *            The organization root.
+     */
+    public BlockUIDGenerator(String root) {
+        this(root, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Create a generator below the passed root.
+     * 
+     * @param root
+     *            The organization root.
+     * @param blockSize
+     *            The number of counter values taken by a thread at once.
+     * @throws IllegalArgumentException
+     *             If root is too long to build UIDs from it.
+     */
+    public BlockUIDGenerator(String root, int blockSize) {
+        if (root.endsWith("."))
+            root = root.substring(0, root.length() - 1);
+        this.prefix = root + "." + makeProcessPrefix(root) + ".";
+        if (prefix.length() > MAX_UID_LENGTH - MIN_COUNTER_DIGITS)
+            throw new IllegalArgumentException("UID root too long: " + root);
+        this.blockSize = Math.max(1, blockSize);
+    }
+
+    public String createUID() {
+        long[] b = block.get();
+        if (b[0] == b[1]) {
+            b[0] = counter.getAndAdd(blockSize);
+            b[1] = b[0] + blockSize;
+        }
+        return prefix + (b[0]++);
+    }
+
+    /**
+     * @return The part common to all UIDs of this generator, including the
+     *         trailing dot.
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    private static String makeProcessPrefix(String root) {
+        if (UUID_ROOT.equals(root)) {
+            UUID uuid = UUID.randomUUID();
+            ByteBuffer bytes = ByteBuffer.allocate(16);
+            bytes.putLong(uuid.getMostSignificantBits());
+            bytes.putLong(uuid.getLeastSignificantBits());
+            return new BigInteger(1, bytes.array()).toString();
+        }
+        long random = new SecureRandom().nextLong() & Long.MAX_VALUE;
+        return Long.toString(random == 0 ? 1 : random);
+    }
+
+}
@@ -0,0 +1,174 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+
+package org.antoniomagni.dcm4ceph.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of reusable byte buffers of one size.
+ * <p>
+ * A buffer is taken with {@link #acquire()} and given back with
+ * {@link #release(ByteBuffer)}. When the pool is empty a new buffer is
+ * allocated, and when it is full a released buffer is dropped, so the pool
+ * never blocks and never holds more than its capacity. A buffer must not be
+ * used after it is released.
+ * <p>
+ * A pool of direct buffers allocates at most its capacity of them, since
+ * direct memory is outside the heap and only freed by the collector. Once
+ * they are all taken, for instance by thousands of conversions on virtual
+ * threads, heap buffers are handed out instead, and dropped when released.
+ * <p>
+ * Two shared pools are used by the conversion: {@link #getIOPool()}, for
+ * digests, header encoding and copies, and {@link #getSniffPool()}, for the
+ * first block of an image, from which its header is parsed. Their sizes are
+ * set with system properties:
+ * <ul>
+ * <li>{@code dcm4ceph.buffer.size}: the size of the I/O buffers, 65536 by
+ * default.</li>
+ * <li>{@code dcm4ceph.buffer.sniffsize}: the size of the sniff buffers, 8192
+ * by default.</li>
+ * <li>{@code dcm4ceph.buffer.count}: the number of buffers each pool keeps,
+ * four per processor by default.</li>
+ * <li>{@code dcm4ceph.buffer.direct}: whether the buffers are direct, so that
+ * channels read and write them without a copy. False by default: the JDK
+ * then copies through a direct buffer of its own, per thread.</li>
+ * </ul>
+ *
+ * @author afm
+ *
+ */
+public class BufferPool {
+
+    private static final int COUNT = Integer.getInteger(
+            "dcm4ceph.buffer.count",
+            4 * Runtime.getRuntime().availableProcessors()).intValue();
+
+    private static final boolean DIRECT = Boolean.valueOf(
+            System.getProperty("dcm4ceph.buffer.direct", "false"))
+            .booleanValue();
+
+    private static final BufferPool IO = new BufferPool(Integer.getInteger(
+            "dcm4ceph.buffer.size", 65536).intValue(), COUNT, DIRECT);
+
+    private static final BufferPool SNIFF = new BufferPool(Integer.getInteger(
+            "dcm4ceph.buffer.sniffsize", 8192).intValue(), COUNT, DIRECT);
+
+    private final int bufferSize;
+
+    private final boolean direct;
+
+    private final BlockingQueue<ByteBuffer> free;
+
+    private final int capacity;
+
+    // The number of direct buffers allocated, at most the capacity.
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    /**
+     * @param bufferSize
+     *            The size of the buffers.
+     * @param capacity
+     *            The number of released buffers kept for reuse, and of
+     *            direct buffers allocated.
+     * @param direct
+     *            Whether to allocate direct buffers.
+     */
+    public BufferPool(int bufferSize, int capacity, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.capacity = Math.max(1, capacity);
+        this.free = new ArrayBlockingQueue<ByteBuffer>(this.capacity);
+    }
+
+    /**
+     * @return The pool of buffers for digests, header encoding and copies.
+     */
+    public static BufferPool getIOPool() {
+        return IO;
+    }
+
+    /**
+     * @return The pool of buffers for the first block of an image.
+     */
+    public static BufferPool getSniffPool() {
+        return SNIFF;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Take a buffer from the pool, or allocate one if it is empty.
+     *
+     * @return A cleared buffer of {@link #getBufferSize()} bytes. It is a
+     *         heap buffer if all the direct buffers of a direct pool are
+     *         taken.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            if (direct && reserveDirect())
+                return ByteBuffer.allocateDirect(bufferSize);
+            return ByteBuffer.allocate(bufferSize);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Count a new direct buffer, unless the capacity is reached.
+     */
+    private boolean reserveDirect() {
+        for (;;) {
+            int n = allocated.get();
+            if (n >= capacity)
+                return false;
+            if (allocated.compareAndSet(n, n + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Give a buffer back to the pool.
+     *
+     * @param buf
+     *            A buffer taken from this pool, or {@code null}.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf != null && buf.capacity() == bufferSize
+                && buf.isDirect() == direct)
+            free.offer(buf);
+    }
+
+}
@@ -0,0 +1,77 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+package org.antoniomagni.dcm4ceph.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A channel computing the CRC-32 of the bytes written through it.
+ * <p>
+ * Lets a {@link BatchJournal} record the checksum of an output file as it is
+ * written, instead of reading the file back. As it is not a
+ * {@link java.nio.channels.FileChannel}, the pixel data is then copied
+ * through a pooled buffer rather than by the kernel, which costs one pass
+ * over the data instead of two.
+ *
+ * @author afm
+ *
+ */
+public class ChecksumChannel implements WritableByteChannel {
+
+    private final WritableByteChannel channel;
+
+    private final CRC32 crc;
+
+    /**
+     * @param channel
+     *            The channel to write to. Closing this channel closes it.
+     * @param crc
+     *            The checksum to update.
+     */
+    public ChecksumChannel(WritableByteChannel channel, CRC32 crc) {
+        this.channel = channel;
+        this.crc = crc;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        ByteBuffer written = src.duplicate();
+        int n = channel.write(src);
+        written.limit(written.position() + n);
+        crc.update(written);
+        return n;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
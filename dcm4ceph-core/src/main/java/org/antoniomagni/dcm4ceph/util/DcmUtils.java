@@ -24,9 +24,18 @@
 
 package org.antoniomagni.dcm4ceph.util;
 
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.ServiceLoader;
+import java.util.UUID;
+
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.VR;
-import org.dcm4che2.util.UIDUtils;
 
 /**
  * A static class for dicom related utilities.
@@ -35,10 +44,123 @@ import org.dcm4che2.util.UIDUtils;
  * 
  */
 public class DcmUtils {
+
+    /**
+     * System property with the organization root for new UIDs. If not set,
+     * UIDs are created below 2.25.
+     */
+    public static final String UID_ROOT_PROPERTY = "dcm4ceph.uid.root";
+
+    /**
+     * The namespace of the name based UUIDs of
+     * {@link #createNameBasedUID(String)}. It must never change: the UIDs
+     * derived from a name would change with it.
+     */
+    public static final UUID UID_NAMESPACE = UUID
+            .fromString("eec989ce-16f4-4fc2-859f-2c1c3a886b44");
+
+    private static volatile UIDGenerator uidGenerator = makeUIDGenerator();
+
     public static void ensureUID(DicomObject attrs, int tag) {
         if (!attrs.containsValue(tag)) {
-            attrs.putString(tag, VR.UI, UIDUtils.createUID());
+            attrs.putString(tag, VR.UI, createUID());
+        }
+    }
+
+    /**
+     * Create a new UID with the current {@link UIDGenerator}.
+     * 
+     * @return
+     */
+    public static String createUID() {
+        return uidGenerator.createUID();
+    }
+
+    /**
+     * Join values into a name for {@link #createNameBasedUID(String)}.
+     * <p>
+     * Each value is prefixed with its length, and a missing value is written
+     * as {@code -}, so that different values never give the same name: a
+     * plain join would give the same name for {@code a|b, c} and
+     * {@code a, b|c}, and for a missing and an empty value.
+     * 
+     * @param values
+     *            The values, some of which may be {@code null}.
+     * @return
+     */
+    public static String nameKey(String... values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                sb.append('|');
+            if (values[i] == null)
+                sb.append('-');
+            else
+                sb.append(values[i].length()).append(':').append(values[i]);
         }
+        return sb.toString();
+    }
+
+    /**
+     * Create a UID derived from a name.
+     * <p>
+     * The name is hashed in the {@link #UID_NAMESPACE} into a name based
+     * (version 5) UUID, as described in RFC 4122, which is then turned into a
+     * UID below 2.25 as described in DICOM PS3.5 Annex B.2. The same name
+     * always gives the same UID.
+     * 
+     * @param name
+     * @return
+     */
+    public static String createNameBasedUID(String name) {
+        byte[] hash;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(ByteBuffer.allocate(16).putLong(
+                    UID_NAMESPACE.getMostSignificantBits()).putLong(
+                    UID_NAMESPACE.getLeastSignificantBits()).array());
+            hash = md.digest(name.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] uuid = Arrays.copyOf(hash, 16);
+        uuid[6] = (byte) ((uuid[6] & 0x0f) | 0x50); // version 5
+        uuid[8] = (byte) ((uuid[8] & 0x3f) | 0x80); // IETF variant
+        return BlockUIDGenerator.UUID_ROOT + "."
+                + new BigInteger(1, uuid).toString();
+    }
+
+    public static UIDGenerator getUIDGenerator() {
+        return uidGenerator;
+    }
+
+    /**
+     * Set the generator used for all new Study, Series and SOP Instance UIDs.
+     * 
+     * @param generator
+     */
+    public static void setUIDGenerator(UIDGenerator generator) {
+        if (generator == null)
+            throw new NullPointerException("generator");
+        uidGenerator = generator;
+    }
+
+    /**
+     * Find the default {@link UIDGenerator}.
+     * <p>
+     * Uses the first one registered as a service, or a
+     * {@link BlockUIDGenerator} below the root set in
+     * {@link #UID_ROOT_PROPERTY}.
+     */
+    private static UIDGenerator makeUIDGenerator() {
+        Iterator<UIDGenerator> services = ServiceLoader.load(
+                UIDGenerator.class).iterator();
+        if (services.hasNext())
+            return services.next();
+        return new BlockUIDGenerator(System.getProperty(UID_ROOT_PROPERTY,
+                BlockUIDGenerator.UUID_ROOT));
     }
 
 }
@@ -0,0 +1,147 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ * 
+ * Antonio Magni 
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ * 
+ */
+
+
+package org.antoniomagni.dcm4ceph.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A process-wide registry of default properties.
+ * <p>
+ * Each properties resource is looked up in the ClassPath and parsed only the
+ * first time it is requested from a {@link ClassLoader}. Resources are cached
+ * per class loader, so that applications deployed side by side, each with
+ * its own defaults, do not see each other's, and a class loader that is
+ * unloaded takes its cache with it. The cache of the class loader used last
+ * is found without a lock, so that objects created from many threads do not
+ * contend for it.
+ * <p>
+ * The parsed {@link Properties} are never handed out: callers get a new,
+ * empty {@link Properties} object which uses them as its defaults. Changes
+ * to the returned object therefore never affect other callers, and creating
+ * it costs no I/O.
+ * 
+ * @author afm
+ * 
+ */
+public class DefaultsRegistry {
+
+    private static final Map<ClassLoader, ConcurrentMap<String, Properties>> registries = new WeakHashMap<ClassLoader, ConcurrentMap<String, Properties>>();
+
+    // Resources looked up without a class loader, as for the classes of the
+    // bootstrap loader, which is never unloaded.
+    private static final ConcurrentMap<String, Properties> systemDefaults = new ConcurrentHashMap<String, Properties>();
+
+    // The cache of the class loader used last.
+    private static volatile Registry last;
+
+    /**
+     * The cache of a class loader, which it does not keep from being
+     * unloaded.
+     */
+    private static class Registry {
+
+        final WeakReference<ClassLoader> loader;
+
+        final ConcurrentMap<String, Properties> defaults;
+
+        Registry(ClassLoader loader, ConcurrentMap<String, Properties> defaults) {
+            this.loader = new WeakReference<ClassLoader>(loader);
+            this.defaults = defaults;
+        }
+    }
+
+    private DefaultsRegistry() {
+    }
+
+    /**
+     * Get a view of the default properties found in a resource.
+     * 
+     * @param c
+     *            The {@link Class} whose {@link ClassLoader} is used to load
+     *            the resource the first time.
+     * @param resource
+     *            The name of the properties resource.
+     * @return A new {@link Properties} object with the resource's properties
+     *         as defaults.
+     * 
+     * @see FileUtils#loadProperties(Class, String)
+     */
+    public static Properties getDefaults(Class<?> c, String resource) {
+        return getDefaults(c.getClassLoader(), resource);
+    }
+
+    /**
+     * Get a view of the default properties found in a resource.
+     * 
+     * @param cl
+     *            The {@link ClassLoader} to load the resource with the first
+     *            time, or {@code null} for the system class loader.
+     * @param resource
+     *            The name of the properties resource.
+     * @return A new {@link Properties} object with the resource's properties
+     *         as defaults.
+     * 
+     * @see FileUtils#loadProperties(ClassLoader, String)
+     */
+    public static Properties getDefaults(ClassLoader cl, String resource) {
+        ConcurrentMap<String, Properties> defaults = registry(cl);
+        Properties shared = defaults.get(resource);
+        if (shared == null) {
+            // Loaded outside the map: computeIfAbsent would hold a lock
+            // during the read. Concurrent first calls may load it twice.
+            Properties loaded = FileUtils.loadProperties(cl, resource);
+            shared = defaults.putIfAbsent(resource, loaded);
+            if (shared == null)
+                shared = loaded;
+        }
+        return new Properties(shared);
+    }
+
+    private static ConcurrentMap<String, Properties> registry(ClassLoader cl) {
+        if (cl == null)
+            return systemDefaults;
+        Registry r = last;
+        if (r != null && r.loader.get() == cl)
+            return r.defaults;
+
+        ConcurrentMap<String, Properties> defaults;
+        synchronized (registries) {
+            defaults = registries.get(cl);
+            if (defaults == null) {
+                defaults = new ConcurrentHashMap<String, Properties>();
+                registries.put(cl, defaults);
+            }
+        }
+        last = new Registry(cl, defaults);
+        return defaults;
+    }
+
+}
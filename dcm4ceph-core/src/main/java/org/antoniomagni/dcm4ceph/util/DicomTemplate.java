@@ -0,0 +1,78 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ * 
+ * Antonio Magni 
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ * 
+ */
+
+
+package org.antoniomagni.dcm4ceph.util;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+
+/**
+ * A set of DICOM attributes shared by many objects.
+ * <p>
+ * The attributes, including code sequences, are built once and then copied
+ * into each new object with {@link DicomObject#copyTo(DicomObject)}. The
+ * copy shares the encoded values of simple attributes with the template;
+ * setting an attribute on the copy replaces the value instead of changing
+ * it, so the template itself is never modified.
+ * 
+ * @author afm
+ * 
+ */
+public class DicomTemplate {
+
+    private final DicomObject template = new BasicDicomObject();
+
+    /**
+     * Create a template from the attributes of a {@link DicomObject}.
+     * <p>
+     * The attributes are copied, so later changes to attrs do not affect the
+     * template.
+     * 
+     * @param attrs
+     */
+    public DicomTemplate(DicomObject attrs) {
+        attrs.copyTo(template);
+    }
+
+    /**
+     * Copy the template attributes into a {@link DicomObject}, replacing the
+     * values of attributes it already contains.
+     * 
+     * @param dest
+     */
+    public void copyTo(DicomObject dest) {
+        template.copyTo(dest);
+    }
+
+    /**
+     * @return A new {@link DicomObject} holding the template attributes.
+     */
+    public DicomObject newDicomObject() {
+        DicomObject dcmobj = new BasicDicomObject();
+        template.copyTo(dcmobj);
+        return dcmobj;
+    }
+
+}
@@ -0,0 +1,135 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+package org.antoniomagni.dcm4ceph.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes a compressed stream as the items of encapsulated pixel data.
+ * <p>
+ * The items follow the Pixel Data element header, which is written with an
+ * undefined length by the caller:
+ *
+ * <pre>
+ * Item (Basic Offset Table) [offset of the frame]
+ * Item (fragment) ...
+ * Sequence Delimitation Item
+ * </pre>
+ *
+ * The stream is split in fragments of at most the given size, each copied
+ * from the input file to the output by
+ * {@link FileUtils#transferFully(FileChannel, long, long, WritableByteChannel)}
+ * , so by the kernel where the output allows it. Item tags and lengths are
+ * always little endian.
+ *
+ * @author afm
+ *
+ */
+public class EncapsulatedPixelData {
+
+    /**
+     * The largest fragment that fits in an item: item lengths are even, and
+     * written as an int.
+     */
+    public static final int MAX_FRAGMENT_SIZE = Integer.MAX_VALUE - 1;
+
+    private static final int ITEM = 0xFFFEE000;
+
+    private static final int SEQUENCE_DELIMITATION_ITEM = 0xFFFEE0DD;
+
+    private EncapsulatedPixelData() {
+    }
+
+    /**
+     * Write a single frame stream.
+     *
+     * @param in
+     *            The file holding the stream, from its start to its end.
+     * @param out
+     *            The channel to write to, after the Pixel Data header. It is
+     *            not closed.
+     * @param fragmentSize
+     *            The largest fragment, or 0 for
+     *            {@link #MAX_FRAGMENT_SIZE}. Must be even.
+     * @param offsetTable
+     *            Whether to fill the Basic Offset Table, rather than leave
+     *            it empty. The table of a single frame holds offset 0, where
+     *            its first fragment starts.
+     * @return The number of fragments written.
+     * @throws IOException
+     */
+    public static int write(FileChannel in, WritableByteChannel out,
+            int fragmentSize, boolean offsetTable) throws IOException {
+        if (fragmentSize < 0 || (fragmentSize & 1) != 0)
+            throw new IllegalArgumentException("Bad fragment size: "
+                    + fragmentSize);
+        long maxFragment = fragmentSize > 0 ? fragmentSize
+                : MAX_FRAGMENT_SIZE;
+
+        ByteBuffer header = ByteBuffer.allocate(12).order(
+                ByteOrder.LITTLE_ENDIAN);
+        header.putInt(ITEM).putInt(offsetTable ? 4 : 0);
+        if (offsetTable)
+            header.putInt(0);
+        writeFully(header, out);
+
+        long length = in.size();
+        int fragments = 0;
+        long len;
+        for (long pos = 0; pos < length; pos += len) {
+            len = Math.min(maxFragment, length - pos);
+            header.clear();
+            header.putInt(ITEM).putInt((int) ((len + 1) & ~1));
+            writeFully(header, out);
+
+            FileUtils.transferFully(in, pos, len, out);
+
+            // Only the last fragment can be odd.
+            if ((len & 1) != 0) {
+                header.clear();
+                header.put((byte) 0);
+                writeFully(header, out);
+            }
+            fragments++;
+        }
+
+        header.clear();
+        header.putInt(SEQUENCE_DELIMITATION_ITEM).putInt(0);
+        writeFully(header, out);
+        return fragments;
+    }
+
+    private static void writeFully(ByteBuffer buf, WritableByteChannel out)
+            throws IOException {
+        buf.flip();
+        while (buf.hasRemaining())
+            out.write(buf);
+    }
+
+}
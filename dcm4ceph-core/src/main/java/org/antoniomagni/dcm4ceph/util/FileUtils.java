@@ -24,13 +24,25 @@
 
 package org.antoniomagni.dcm4ceph.util;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Properties;
 
 /**
@@ -46,22 +58,14 @@ public class FileUtils {
      * Return a new file with dcm extension.
      * <p>
      * Create a new File object, based on file, by replacing its extension with
-     * "dcm". Catches dropped exceptions. Same as
-     * 
-     * <pre>
-     * getFileNewExtension(file, &quot;dcm&quot;);
-     * </pre>
+     * "dcm". Unlike {@link #getFileNewExtension(File, String)}, this does not
+     * access the file system.
      * 
      * @param file
      * @return
      */
     public static File getDCMFile(File file) {
-        try {
-            return getFileNewExtension(file, "dcm");
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            return null;
-        }
+        return replaceExtension(file, "dcm");
     }
 
     /**
@@ -71,42 +75,28 @@ public class FileUtils {
      * the new dcm file. Same as
      * 
      * <pre>
-     * getFileNewExtension(file, &quot;dcm&quot;).getName();
+     * getDCMFile(file).getName();
      * </pre>
      * 
      * @param file
      * @return
      */
     public static String getDCMFileName(File file) {
-        try {
-            return getFileNewExtension(file, "dcm").getName();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            return null;
-        }
+        return getDCMFile(file).getName();
     }
 
     /**
      * Get the {@link File} for a properties file.
      * <p>
      * Replaces the extension from file with "properties", and returns the new
-     * properties file. Same as
-     * 
-     * <pre>
-     * getFileNewExtension(file, &quot;properties&quot;);
-     * </pre>
-     * 
+     * properties file. Does not access the file system, so the returned file
+     * may not exist.
      * 
      * @param file
      * @return
      */
     public static File getPropertiesFile(File file) {
-        try {
-            return FileUtils.getFileNewExtension(file, "properties");
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            return null;
-        }
+        return replaceExtension(file, "properties");
     }
 
     /**
@@ -119,6 +109,7 @@ public class FileUtils {
      * @param ext
      * @return
      * @throws FileNotFoundException
+     *             If file cannot be read.
      */
     public static File getFileNewExtension(File file, String ext)
             throws FileNotFoundException {
@@ -127,6 +118,10 @@ public class FileUtils {
                     "Can't read input Cephalogram Image file: "
                             + file.getAbsolutePath());
 
+        return replaceExtension(file, ext);
+    }
+
+    private static File replaceExtension(File file, String ext) {
         if (!ext.startsWith("."))
             ext = "." + ext;
         String[] filename = file.getName().split("\\.");
@@ -153,17 +148,39 @@ public class FileUtils {
      * @return
      */
     public static Properties loadProperties(Class c, String conffile) {
+        return loadProperties(c.getClassLoader(), conffile);
+    }
+
+    /**
+     * Load a property from a properties file found by a {@link ClassLoader}.
+     * 
+     * @param cl
+     *            The {@link ClassLoader}, or {@code null} for the system class
+     *            loader.
+     * @param conffile
+     *            The properties file you want to load.
+     * @return
+     * @see #loadProperties(Class, String)
+     */
+    public static Properties loadProperties(ClassLoader cl, String conffile) {
         Log.info("Loading Properties file " + conffile);
-        URLClassLoader cl = (URLClassLoader) c.getClassLoader();
 
         Properties p = new Properties();
 
-        URL fileURL = cl.findResource(conffile);
-        if (fileURL == null) {
+        // Any class loader will do, not only URLClassLoaders: the application
+        // class loader is not one since Java 9.
+        InputStream in = cl == null ? ClassLoader
+                .getSystemResourceAsStream(conffile) : cl
+                .getResourceAsStream(conffile);
+        if (in == null) {
             Log.warn("Could not find file " + conffile + " in ClassPath.");
         } else {
             try {
-                p.load(new BufferedInputStream(fileURL.openStream()));
+                try {
+                    load(p, in);
+                } finally {
+                    in.close();
+                }
             } catch (Exception e) {
                 e.printStackTrace();
                 Log.err("Cannot open the configuration file " + conffile);
@@ -187,19 +204,227 @@ public class FileUtils {
         Log.info("Loading Properties file " + filename);
         Properties props = new Properties();
 
-        if (!filename.canRead()) {
-            Log.warn("Cannot read from file " + filename + ".");
-        } else {
+        try {
+            InputStream in = new FileInputStream(filename);
             try {
-                props.load(new FileInputStream(filename));
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
+                load(props, in);
+            } finally {
+                in.close();
             }
+        } catch (FileNotFoundException e) {
+            Log.warn("Cannot read from file " + filename + ".");
+        } catch (IOException e) {
+            e.printStackTrace();
         }
         return props;
 
     }
 
+    /**
+     * Read a stream to its end, then parse it into props.
+     * <p>
+     * {@link Properties#load(InputStream)} is synchronized, so reading the
+     * stream inside it would pin a virtual thread for the whole read.
+     */
+    private static void load(Properties props, InputStream in)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            bytes.write(buf, 0, n);
+        props.load(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    /**
+     * Format bytes as a lower case hexadecimal string, as used for digests.
+     * 
+     * @param bytes
+     * @return
+     */
+    public static String toHexString(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++) {
+            sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Transfer a region of a file to a channel.
+     * <p>
+     * Uses {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+     * so that the kernel copies the bytes directly when the destination is a
+     * file or a socket, and loops until all bytes have been transferred. Any
+     * other destination is written from a buffer of
+     * {@link BufferPool#getIOPool()}, rather than one allocated per call.
+     * 
+     * @param src
+     *            The channel to read from.
+     * @param position
+     *            The position in src where to start reading.
+     * @param count
+     *            The number of bytes to transfer.
+     * @param dest
+     *            The channel to write to. A {@link SelectableChannel} must be
+     *            in blocking mode: a full non-blocking channel accepts no
+     *            bytes, and the transfer would spin until it drains.
+     * @throws IOException
+     *             If src ends before count bytes could be transferred.
+     * @throws IllegalBlockingModeException
+     *             If dest is a non-blocking {@link SelectableChannel}.
+     */
+    public static void transferFully(FileChannel src, long position,
+            long count, WritableByteChannel dest) throws IOException {
+        if (dest instanceof SelectableChannel
+                && !((SelectableChannel) dest).isBlocking())
+            throw new IllegalBlockingModeException();
+
+        long end = position + count;
+        if (!(dest instanceof FileChannel)
+                && !(dest instanceof SelectableChannel)) {
+            copy(src, position, end, dest);
+            return;
+        }
+        while (position < end) {
+            long n = src.transferTo(position, end - position, dest);
+            if (n <= 0 && position >= src.size())
+                throw new EOFException("Unexpected end of file after "
+                        + position + " bytes.");
+            position += n;
+        }
+    }
+
+    private static void copy(FileChannel src, long position, long end,
+            WritableByteChannel dest) throws IOException {
+        ByteBuffer buf = BufferPool.getIOPool().acquire();
+        try {
+            while (position < end) {
+                buf.clear();
+                if (end - position < buf.capacity())
+                    buf.limit((int) (end - position));
+                int n = src.read(buf, position);
+                if (n < 0)
+                    throw new EOFException("Unexpected end of file after "
+                            + position + " bytes.");
+                buf.flip();
+                while (buf.hasRemaining())
+                    dest.write(buf);
+                position += n;
+            }
+        } finally {
+            BufferPool.getIOPool().release(buf);
+        }
+    }
+
+    /**
+     * Get a channel writing to a stream.
+     * <p>
+     * The channel of a {@link FileOutputStream} is returned as is, so that
+     * {@link #transferFully(FileChannel, long, long, WritableByteChannel)}
+     * can still let the kernel copy. Unlike the channel of
+     * {@link java.nio.channels.Channels#newChannel(OutputStream)}, the
+     * channel returned for other streams holds no monitor while writing, so
+     * a virtual thread writing to a slow stream is not pinned. It is not
+     * thread safe, and closing it closes the stream.
+     * 
+     * @param out
+     * @return
+     */
+    public static WritableByteChannel newChannel(OutputStream out) {
+        if (out instanceof FileOutputStream)
+            return ((FileOutputStream) out).getChannel();
+        return new StreamChannel(out);
+    }
+
+    private static class StreamChannel implements WritableByteChannel {
+
+        private static final int CHUNK = 8192;
+
+        private final OutputStream out;
+
+        private byte[] chunk;
+
+        private boolean open = true;
+
+        StreamChannel(OutputStream out) {
+            this.out = out;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            if (!open)
+                throw new ClosedChannelException();
+            int len = src.remaining();
+            if (src.hasArray()) {
+                out.write(src.array(), src.arrayOffset() + src.position(), len);
+                src.position(src.limit());
+                return len;
+            }
+            if (chunk == null)
+                chunk = new byte[CHUNK];
+            while (src.hasRemaining()) {
+                int n = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+            return len;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public void close() throws IOException {
+            if (open) {
+                open = false;
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Create a temporary file to write file to.
+     * <p>
+     * The temporary file is a sibling of file, so that it can be renamed to
+     * file with {@link #rename(File, File)} once it is complete. Each call
+     * creates a new, empty file with a unique name, so that two writes to
+     * the same file do not share their temporary file.
+     * 
+     * @param file
+     * @return The new temporary file.
+     * @throws IOException
+     *             If the temporary file cannot be created, for instance
+     *             because the directory of file does not exist.
+     */
+    public static File getTempFile(File file) throws IOException {
+        String prefix = file.getName();
+        // File.createTempFile needs a prefix of three characters at least.
+        while (prefix.length() < 3)
+            prefix += '_';
+        return File.createTempFile(prefix, ".part", file.getAbsoluteFile()
+                .getParentFile());
+    }
+
+    /**
+     * Rename a file, replacing the target if it exists.
+     * <p>
+     * The rename is atomic where the file system supports it, so the target
+     * is either the old file or the complete new one, never a part of it.
+     * 
+     * @param src
+     * @param target
+     * @throws IOException
+     */
+    public static void rename(File src, File target) throws IOException {
+        try {
+            Files.move(src.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(src.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
 }
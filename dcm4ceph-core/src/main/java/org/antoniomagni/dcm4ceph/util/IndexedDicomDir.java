@@ -0,0 +1,229 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+
+package org.antoniomagni.dcm4ceph.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.media.ApplicationProfile;
+import org.dcm4che2.media.BasicApplicationProfile;
+import org.dcm4che2.media.DicomDirWriter;
+import org.dcm4che2.media.FileSetInformation;
+
+/**
+ * A DICOMDIR that new instances can be appended to.
+ * <p>
+ * The patient, study and series records are kept in hash maps keyed by
+ * Patient ID, Study Instance UID and Series Instance UID. Adding an instance
+ * looks its parents up there, instead of walking the record chain of the
+ * DICOMDIR as {@link DicomDirWriter#addPatientRecord(DicomObject)} does. When
+ * an existing DICOMDIR is opened, the chain is walked once, down to the series
+ * level, to fill the maps.
+ *
+ * @author afm
+ *
+ */
+public class IndexedDicomDir {
+
+    private static final String PATIENT = "PATIENT";
+
+    private static final String STUDY = "STUDY";
+
+    private static final String SERIES = "SERIES";
+
+    private final DicomDirWriter writer;
+
+    private final ApplicationProfile ap = new BasicApplicationProfile();
+
+    private final Map<String, DicomObject> patients = new HashMap<String, DicomObject>();
+
+    private final Map<String, DicomObject> studies = new HashMap<String, DicomObject>();
+
+    private final Map<String, DicomObject> series = new HashMap<String, DicomObject>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private IndexedDicomDir(DicomDirWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Create a new, empty DICOMDIR, replacing file if it exists.
+     *
+     * @param file
+     *            The DICOMDIR file.
+     * @return The new DICOMDIR.
+     * @throws IOException
+     */
+    public static IndexedDicomDir create(File file) throws IOException {
+        FileSetInformation fsinfo = new FileSetInformation();
+        fsinfo.init();
+        return new IndexedDicomDir(new DicomDirWriter(file, fsinfo));
+    }
+
+    /**
+     * Open a DICOMDIR for appending.
+     * <p>
+     * If file does not exist yet, a new DICOMDIR is created.
+     *
+     * @param file
+     *            The DICOMDIR file.
+     * @return The opened DICOMDIR.
+     * @throws IOException
+     */
+    public static IndexedDicomDir open(File file) throws IOException {
+        if (!file.exists())
+            return create(file);
+
+        IndexedDicomDir dicomdir = new IndexedDicomDir(new DicomDirWriter(file));
+        dicomdir.index();
+        return dicomdir;
+    }
+
+    /**
+     * Fill the maps from the records already in the DICOMDIR.
+     */
+    private void index() throws IOException {
+        for (DicomObject pat = writer.findFirstRootRecord(); pat != null; pat = writer
+                .findNextSiblingRecord(pat)) {
+            if (!isType(pat, PATIENT))
+                continue;
+            patients.put(key(pat, Tag.PatientID), pat);
+
+            for (DicomObject sty = writer.findFirstChildRecord(pat); sty != null; sty = writer
+                    .findNextSiblingRecord(sty)) {
+                if (!isType(sty, STUDY))
+                    continue;
+                studies.put(key(sty, Tag.StudyInstanceUID), sty);
+
+                for (DicomObject ser = writer.findFirstChildRecord(sty); ser != null; ser = writer
+                        .findNextSiblingRecord(ser)) {
+                    if (isType(ser, SERIES))
+                        series.put(key(ser, Tag.SeriesInstanceUID), ser);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the instance written to f, creating its patient, study and series
+     * records if they are not in the DICOMDIR yet.
+     *
+     * @param dcmobj
+     *            The object written to f, including its file meta
+     *            information.
+     * @param f
+     *            The file it was written to.
+     * @throws IOException
+     */
+    public void addInstance(DicomObject dcmobj, File f) throws IOException {
+        lock.lock();
+        try {
+            add(dcmobj, f);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(DicomObject dcmobj, File f) throws IOException {
+        String patKey = key(dcmobj, Tag.PatientID);
+        DicomObject pat = patients.get(patKey);
+        if (pat == null) {
+            pat = ap.makePatientDirectoryRecord(dcmobj);
+            writer.addRootRecord(pat);
+            patients.put(patKey, pat);
+        }
+
+        String styKey = key(dcmobj, Tag.StudyInstanceUID);
+        DicomObject sty = studies.get(styKey);
+        if (sty == null) {
+            sty = ap.makeStudyDirectoryRecord(dcmobj);
+            writer.addChildRecord(pat, sty);
+            studies.put(styKey, sty);
+        }
+
+        String serKey = key(dcmobj, Tag.SeriesInstanceUID);
+        DicomObject ser = series.get(serKey);
+        if (ser == null) {
+            ser = ap.makeSeriesDirectoryRecord(dcmobj);
+            writer.addChildRecord(sty, ser);
+            series.put(serKey, ser);
+        }
+
+        writer.addChildRecord(ser, ap.makeInstanceDirectoryRecord(dcmobj,
+                writer.toFileID(f)));
+    }
+
+    /**
+     * @return The DICOMDIR file.
+     */
+    public File getFile() {
+        return writer.getFile();
+    }
+
+    /**
+     * Write out the records added so far, without closing the DICOMDIR.
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        lock.lock();
+        try {
+            writer.commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write out pending changes and close the DICOMDIR.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            writer.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isType(DicomObject rec, String type) {
+        return type.equals(rec.getString(Tag.DirectoryRecordType));
+    }
+
+    private static String key(DicomObject dcmobj, int tag) {
+        String value = dcmobj.getString(tag);
+        return value == null ? "" : value;
+    }
+
+}
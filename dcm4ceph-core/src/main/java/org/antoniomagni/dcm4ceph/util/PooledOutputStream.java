@@ -0,0 +1,118 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+
+package org.antoniomagni.dcm4ceph.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A buffered stream writing to a channel through a buffer taken from a
+ * {@link BufferPool}.
+ * <p>
+ * Unlike a {@link java.io.BufferedOutputStream}, no buffer is allocated per
+ * stream. Closing the stream flushes it and gives the buffer back, but leaves
+ * the channel open.
+ *
+ * @author afm
+ *
+ */
+public class PooledOutputStream extends OutputStream {
+
+    private final WritableByteChannel channel;
+
+    private final BufferPool pool;
+
+    private ByteBuffer buf;
+
+    public PooledOutputStream(WritableByteChannel channel, BufferPool pool) {
+        this.channel = channel;
+        this.pool = pool;
+        this.buf = pool.acquire();
+    }
+
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!buf.hasRemaining())
+            drain();
+        buf.put((byte) b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (!buf.hasRemaining())
+                drain();
+            int n = Math.min(len, buf.remaining());
+            buf.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void flush() throws IOException {
+        ensureOpen();
+        drain();
+    }
+
+    /**
+     * Flush the stream and give its buffer back. The channel is not closed.
+     */
+    public void close() throws IOException {
+        if (buf == null)
+            return;
+        try {
+            drain();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Give the buffer back without flushing, dropping the bytes not written
+     * yet. Used when the output failed anyway.
+     */
+    public void release() {
+        if (buf != null) {
+            pool.release(buf);
+            buf = null;
+        }
+    }
+
+    private void drain() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining())
+            channel.write(buf);
+        buf.clear();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (buf == null)
+            throw new IOException("Stream closed.");
+    }
+
+}
@@ -0,0 +1,45 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ * 
+ * Antonio Magni 
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ * 
+ */
+
+package org.antoniomagni.dcm4ceph.util;
+
+import org.dcm4che2.util.UIDUtils;
+
+/**
+ * A {@link UIDGenerator} which delegates to {@link UIDUtils#createUID()}.
+ * <p>
+ * This creates random UIDs below the dcm4che root, which is what dcm4ceph
+ * always did. {@link UIDUtils#createUID()} is synchronized, so it does not
+ * scale to many converting threads.
+ * 
+ * @author afm
+ * 
+ */
+public class RandomUIDGenerator implements UIDGenerator {
+
+    public String createUID() {
+        return UIDUtils.createUID();
+    }
+
+}
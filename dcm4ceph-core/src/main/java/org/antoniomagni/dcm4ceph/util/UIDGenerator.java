@@ -0,0 +1,46 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ * 
+ * Antonio Magni 
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ * 
+ */
+
+package org.antoniomagni.dcm4ceph.util;
+
+/**
+ * Creates DICOM unique identifiers.
+ * <p>
+ * Implementations must be safe to use from several threads at once. The
+ * generator used by dcm4ceph is set with
+ * {@link DcmUtils#setUIDGenerator(UIDGenerator)}, or found with
+ * {@link java.util.ServiceLoader} by listing the implementation in
+ * <code>META-INF/services/org.antoniomagni.dcm4ceph.util.UIDGenerator</code>.
+ * 
+ * @author afm
+ * 
+ */
+public interface UIDGenerator {
+
+    /**
+     * @return A new UID, never returned before by this generator.
+     */
+    String createUID();
+
+}
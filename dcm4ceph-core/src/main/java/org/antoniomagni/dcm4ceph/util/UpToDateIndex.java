@@ -0,0 +1,413 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+
+package org.antoniomagni.dcm4ceph.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A sidecar index of the inputs a .dcm file was converted from.
+ * <p>
+ * For each converted image the index records the .dcm file and its size, the
+ * size and modification time of the image and of its properties file, and
+ * the options it was converted with. An image whose files still have the
+ * recorded size and time, whose .dcm file still has the recorded size, and
+ * which would be converted with the same options, is up to date: checking it
+ * costs a few stats, and no read.
+ * <p>
+ * When content hashes are enabled, the SHA-1 of the image and of its
+ * properties file are recorded too. A file whose time changed but whose size
+ * did not, for instance because it was copied or touched, is then read and
+ * still up to date if its hash is the same. Its new time is recorded, so
+ * that it is not read again on the next run.
+ * <p>
+ * The index is loaded in a hash map when opened, and written back, through
+ * a temporary file, by {@link #save()}, which a long run calls from time to
+ * time so that a crash does not lose all of its entries. One line is written
+ * per image:
+ *
+ * <pre>
+ * image TAB output TAB outputSize TAB imageSize TAB imageTime TAB imageHash
+ *     TAB propertiesSize TAB propertiesTime TAB propertiesHash TAB options
+ * </pre>
+ *
+ * with {@code -} for a hash that was not computed. Entries written without
+ * options, by an earlier version, are never up to date.
+ *
+ * @author afm
+ *
+ */
+public class UpToDateIndex {
+
+    /**
+     * The name of the index in the output directory of a batch run.
+     */
+    public static final String DEFAULT_NAME = ".dcm4ceph-index";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String SEPARATOR = "\t";
+
+    private static final String NO_HASH = "-";
+
+    private static final String NO_OPTIONS = "-";
+
+    private static final int FIELDS = 10;
+
+    private static final int FIELDS_WITHOUT_OPTIONS = 9;
+
+    private final File file;
+
+    private final boolean hashing;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private boolean modified;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The recorded state of one file.
+     */
+    private static class Stamp {
+
+        final long size;
+
+        final long time;
+
+        final String hash;
+
+        Stamp(long size, long time, String hash) {
+            this.size = size;
+            this.time = time;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * The recorded state of one conversion.
+     */
+    private static class Entry {
+
+        final String output;
+
+        final long outputSize;
+
+        final Stamp image;
+
+        final Stamp properties;
+
+        // The options of the conversion, or null if not recorded.
+        final String options;
+
+        Entry(String output, long outputSize, Stamp image, Stamp properties,
+                String options) {
+            this.output = output;
+            this.outputSize = outputSize;
+            this.image = image;
+            this.properties = properties;
+            this.options = options;
+        }
+    }
+
+    /**
+     * Open an index, loading the entries already in it.
+     *
+     * @param file
+     *            The index file. It is created by {@link #save()} if it does
+     *            not exist.
+     * @param hashing
+     *            Whether to record content hashes, and use them for files
+     *            whose time changed.
+     * @throws IOException
+     */
+    public UpToDateIndex(File file, boolean hashing) throws IOException {
+        this.file = file;
+        this.hashing = hashing;
+        if (file.exists())
+            load();
+    }
+
+    private void load() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split(SEPARATOR, -1);
+                if (f.length != FIELDS && f.length != FIELDS_WITHOUT_OPTIONS)
+                    continue;
+                try {
+                    entries.put(f[0], new Entry(f[1], Long.parseLong(f[2]),
+                            new Stamp(Long.parseLong(f[3]), Long
+                                    .parseLong(f[4]), toHash(f[5])),
+                            new Stamp(Long.parseLong(f[6]), Long
+                                    .parseLong(f[7]), toHash(f[8])),
+                            f.length == FIELDS && !f[9].equals(NO_OPTIONS) ? f[9]
+                                    : null));
+                } catch (NumberFormatException e) {
+                    Log.warn("Ignoring bad entry in " + file + ": " + line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return The index file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The number of images in the index.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check whether an image has changed since it was converted to output.
+     *
+     * @param image
+     *            The image.
+     * @param properties
+     *            The properties file of the image.
+     * @param output
+     *            The .dcm file the image would be converted to.
+     * @param options
+     *            The options the image would be converted with, as passed to
+     *            {@link #update(File, File, File, String, String)}.
+     * @return {@code true} if output was converted from image and
+     *         properties with the same options, and none of them changed
+     *         since.
+     */
+    public boolean isUpToDate(File image, File properties, File output,
+            String options) {
+        String key = image.getAbsolutePath();
+        Entry entry;
+        lock.lock();
+        try {
+            entry = entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+        if (entry == null || !entry.output.equals(output.getAbsolutePath())
+                || !options.equals(entry.options)
+                || output.length() != entry.outputSize)
+            return false;
+
+        Stamp imageStamp = check(entry.image, image);
+        if (imageStamp == null)
+            return false;
+        Stamp propertiesStamp = check(entry.properties, properties);
+        if (propertiesStamp == null)
+            return false;
+
+        if (imageStamp != entry.image || propertiesStamp != entry.properties) {
+            lock.lock();
+            try {
+                entries.put(key, new Entry(entry.output, entry.outputSize,
+                        imageStamp, propertiesStamp, entry.options));
+                modified = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare a file with its recorded state.
+     *
+     * @return The recorded state if the file did not change, a new state if
+     *         only its time changed, {@code null} if it changed.
+     */
+    private Stamp check(Stamp stamp, File f) {
+        long size = f.length();
+        if (size != stamp.size)
+            return null;
+        long time = f.lastModified();
+        if (time == stamp.time)
+            return stamp;
+        if (!hashing || stamp.hash == null)
+            return null;
+
+        try {
+            if (stamp.hash.equals(sha1(f)))
+                return new Stamp(size, time, stamp.hash);
+        } catch (IOException e) {
+            Log.warn("Cannot read " + f + ": " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Record that an image was converted.
+     *
+     * @param image
+     *            The image.
+     * @param properties
+     *            The properties file of the image.
+     * @param output
+     *            The complete .dcm file.
+     * @param imageHash
+     *            The SHA-1 of the image if already known, as returned by
+     *            {@link org.antoniomagni.dcm4ceph.core.Cephalogram#getContentDigest()}
+     *            , or {@code null}. Only used when hashing is enabled.
+     * @param options
+     *            The options that change the output, such as the
+     *            encapsulation and the UIDs, as a string without tabs or
+     *            line ends.
+     * @throws IOException
+     *             If a hash cannot be computed.
+     */
+    public void update(File image, File properties, File output,
+            String imageHash, String options) throws IOException {
+        if (hashing && imageHash == null)
+            imageHash = sha1(image);
+        Entry entry = new Entry(output.getAbsolutePath(), output.length(),
+                new Stamp(image.length(), image.lastModified(),
+                        hashing ? imageHash : null), new Stamp(properties
+                        .length(), properties.lastModified(),
+                        hashing ? sha1(properties) : null), options);
+
+        lock.lock();
+        try {
+            entries.put(image.getAbsolutePath(), entry);
+            modified = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the index back, if it changed since it was loaded.
+     * <p>
+     * The index is written to a temporary file which is then renamed, so an
+     * interrupted save leaves the previous index in place.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        lock.lock();
+        try {
+            write();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write() throws IOException {
+        if (!modified)
+            return;
+
+        File tmp = FileUtils.getTempFile(file);
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(tmp),
+                    UTF8);
+            try {
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    out.write(e.getKey() + SEPARATOR + entry.output
+                            + SEPARATOR + entry.outputSize + SEPARATOR
+                            + format(entry.image) + SEPARATOR
+                            + format(entry.properties) + SEPARATOR
+                            + (entry.options == null ? NO_OPTIONS
+                                    : entry.options) + "\n");
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        FileUtils.rename(tmp, file);
+        modified = false;
+    }
+
+    private static String format(Stamp stamp) {
+        return stamp.size + SEPARATOR + stamp.time + SEPARATOR
+                + (stamp.hash == null ? NO_HASH : stamp.hash);
+    }
+
+    private static String toHash(String field) {
+        return field.equals(NO_HASH) ? null : field;
+    }
+
+    /**
+     * Compute the SHA-1 of a file, as a hexadecimal string.
+     *
+     * @param f
+     * @return
+     * @throws IOException
+     */
+    public static String sha1(File f) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer buf = BufferPool.getIOPool().acquire();
+        FileChannel channel = new FileInputStream(f).getChannel();
+        try {
+            while (channel.read(buf) >= 0) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
+        } finally {
+            BufferPool.getIOPool().release(buf);
+            channel.close();
+        }
+        return FileUtils.toHexString(md.digest());
+    }
+
+}
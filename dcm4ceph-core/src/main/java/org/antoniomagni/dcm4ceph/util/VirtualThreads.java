@@ -0,0 +1,92 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+
+package org.antoniomagni.dcm4ceph.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Access to virtual threads, when the running JVM has them.
+ * <p>
+ * The library is built for Java 1.8, so the executor is looked up by
+ * reflection: on Java 21 or later {@link #newExecutor()} returns
+ * {@code Executors.newVirtualThreadPerTaskExecutor()}, which starts a new
+ * virtual thread for each task.
+ * <p>
+ * A virtual thread blocked in I/O gives its carrier thread back, unless it
+ * is pinned, which it is while it holds a monitor. The classes shared by the
+ * conversions therefore guard their I/O with
+ * {@link java.util.concurrent.locks.ReentrantLock}s rather than
+ * {@code synchronized}. Running with {@code -Djdk.tracePinnedThreads=short}
+ * reports the pins left.
+ *
+ * @author afm
+ *
+ */
+public class VirtualThreads {
+
+    private static final Method NEW_EXECUTOR = findNewExecutor();
+
+    private VirtualThreads() {
+    }
+
+    private static Method findNewExecutor() {
+        try {
+            return Class.forName("java.util.concurrent.Executors").getMethod(
+                    "newVirtualThreadPerTaskExecutor");
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether the running JVM has virtual threads.
+     */
+    public static boolean isAvailable() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * Create an executor that starts a virtual thread for each task.
+     *
+     * @return The executor. It must be shut down.
+     * @throws UnsupportedOperationException
+     *             If the running JVM has no virtual threads.
+     */
+    public static ExecutorService newExecutor() {
+        if (NEW_EXECUTOR == null)
+            throw new UnsupportedOperationException(
+                    "Virtual threads need Java 21 or later, running "
+                            + System.getProperty("java.version") + ".");
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invoke(null);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException(
+                    "Cannot create a virtual thread executor.", e);
+        }
+    }
+
+}
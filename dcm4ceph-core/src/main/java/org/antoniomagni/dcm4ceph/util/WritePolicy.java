@@ -0,0 +1,456 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+
+package org.antoniomagni.dcm4ceph.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * How a complete output file is put in place.
+ * <p>
+ * Output files are written to a temporary sibling, as returned by
+ * {@link FileUtils#getTempFile(File)}, and handed to {@link #commit(File,
+ * File)}, which renames them to their final name. A reader, or a crash, thus
+ * never sees a partly written file under the final name. The policy decides
+ * when the files are synced to disk:
+ * <ul>
+ * <li>{@link Sync#NONE}: never. The rename is atomic, but after a power
+ * loss the file may be empty.</li>
+ * <li>{@link Sync#PER_FILE}: each file, then its directory, is synced when it
+ * is committed.</li>
+ * <li>{@link Sync#GROUP}: committed files are kept under their temporary
+ * name until a group is full, or until {@link #flush()}. The whole group is
+ * then synced, renamed, and each directory synced once.</li>
+ * </ul>
+ * With group commit, a batch pays for the syncs of a group together instead
+ * of waiting on each file. The files of a group are only in place once the
+ * group is flushed: use {@link #commit(File, File, Listener)} to act on a
+ * file when it is, or {@link #flush()}, which fails if any file committed
+ * before it could not be put in place.
+ *
+ * @author afm
+ *
+ */
+public class WritePolicy {
+
+    /**
+     * When output files are synced to disk.
+     */
+    public enum Sync {
+        NONE, PER_FILE, GROUP
+    }
+
+    /**
+     * Told when a file is in place, or could not be put in place.
+     * <p>
+     * A listener must not call {@link WritePolicy#flush()}, which waits for
+     * the listeners of the groups being committed.
+     */
+    public interface Listener {
+
+        /**
+         * The file is in place.
+         *
+         * @param target
+         */
+        void committed(File target);
+
+        /**
+         * The file could not be put in place. Only called for files waiting
+         * for their group: otherwise {@link WritePolicy#commit(File, File,
+         * Listener)} throws the exception.
+         *
+         * @param target
+         * @param e
+         */
+        void failed(File target, IOException e);
+    }
+
+    /**
+     * The number of files in a group, unless given.
+     */
+    public static final int DEFAULT_GROUP_SIZE = 64;
+
+    /**
+     * Atomic renames, without syncs.
+     */
+    public static final WritePolicy DEFAULT = new WritePolicy(Sync.NONE);
+
+    private final Sync sync;
+
+    private final int groupSize;
+
+    private final List<Pending> pending = new ArrayList<Pending>();
+
+    // Guards the pending files only: a group is taken out of them under the
+    // lock, then synced and renamed without it, so commits to the next group
+    // do not wait for the disk.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition idle = lock.newCondition();
+
+    // The number of groups being synced and renamed.
+    private int committing;
+
+    // The number of files committed with Sync.GROUP, which orders the
+    // failures against the calls to flush().
+    private long commits;
+
+    // The files of failed groups, by target, until committed again.
+    private final Map<File, Failure> failures = new HashMap<File, Failure>();
+
+    /**
+     * A file waiting for its group to be committed.
+     */
+    private static class Pending {
+
+        final File tmp;
+
+        final File target;
+
+        final Listener listener;
+
+        final long seq;
+
+        Pending(File tmp, File target, Listener listener, long seq) {
+            this.tmp = tmp;
+            this.target = target;
+            this.listener = listener;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * A file of a group that could not be committed.
+     */
+    private static class Failure {
+
+        final long seq;
+
+        final IOException error;
+
+        Failure(long seq, IOException error) {
+            this.seq = seq;
+            this.error = error;
+        }
+    }
+
+    public WritePolicy(Sync sync) {
+        this(sync, DEFAULT_GROUP_SIZE);
+    }
+
+    /**
+     * @param sync
+     *            When to sync the files.
+     * @param groupSize
+     *            The number of files committed together with
+     *            {@link Sync#GROUP}.
+     */
+    public WritePolicy(Sync sync, int groupSize) {
+        this.sync = sync;
+        this.groupSize = Math.max(1, groupSize);
+    }
+
+    /**
+     * Get a policy by name, as given on a command line.
+     *
+     * @param name
+     *            {@code none}, {@code file} or {@code group}.
+     * @return
+     * @throws IllegalArgumentException
+     *             If the name is unknown.
+     */
+    public static WritePolicy forName(String name) {
+        if (name.equals("none"))
+            return new WritePolicy(Sync.NONE);
+        if (name.equals("file"))
+            return new WritePolicy(Sync.PER_FILE);
+        if (name.equals("group"))
+            return new WritePolicy(Sync.GROUP);
+        throw new IllegalArgumentException("Unknown sync policy " + name
+                + ", expected none, file or group.");
+    }
+
+    public Sync getSync() {
+        return sync;
+    }
+
+    /**
+     * Put a complete file in place.
+     *
+     * @param tmp
+     *            The complete temporary file.
+     * @param target
+     *            The final name of the file.
+     * @throws IOException
+     */
+    public void commit(File tmp, File target) throws IOException {
+        commit(tmp, target, null);
+    }
+
+    /**
+     * Put a complete file in place, and tell a listener once it is.
+     * <p>
+     * With {@link Sync#GROUP} the listener is called by the thread that
+     * commits the group, which may be another one. A group that fails when
+     * this call completes it is reported to the listeners of its files, and
+     * thrown here if no listener is given. Either way the failure is recorded
+     * for each file of the group that was not put in place, and thrown by
+     * {@link #flush()}. With the other policies the listener is called
+     * before this method returns, or the exception thrown.
+     *
+     * @param tmp
+     *            The complete temporary file.
+     * @param target
+     *            The final name of the file.
+     * @param listener
+     *            The listener, or {@code null}.
+     * @throws IOException
+     */
+    public void commit(File tmp, File target, Listener listener)
+            throws IOException {
+        switch (sync) {
+        case GROUP:
+            List<Pending> group = null;
+            lock.lock();
+            try {
+                failures.remove(target);
+                pending.add(new Pending(tmp, target, listener, commits++));
+                if (pending.size() >= groupSize)
+                    group = takeGroup();
+            } finally {
+                lock.unlock();
+            }
+            if (group != null) {
+                try {
+                    commitGroup(group);
+                } catch (IOException e) {
+                    // Reported to the listeners, unless there is none.
+                    if (listener == null)
+                        throw e;
+                }
+            }
+            return;
+        case PER_FILE:
+            force(tmp);
+            FileUtils.rename(tmp, target);
+            forceDirectory(target.getAbsoluteFile().getParentFile());
+            break;
+        default:
+            FileUtils.rename(tmp, target);
+        }
+        if (listener != null)
+            listener.committed(target);
+    }
+
+    /**
+     * Commit the files waiting for their group to be complete, and wait for
+     * the groups being committed by other threads. When this method returns,
+     * all files committed before it was called are in place.
+     *
+     * @throws IOException
+     *             If any file committed before this call could not be synced
+     *             or renamed, by this thread or another one, and has not been
+     *             committed again since. The files of a failed group that are
+     *             left are kept under their temporary name, and reported to
+     *             their listeners as failed.
+     */
+    public void flush() throws IOException {
+        List<Pending> group;
+        long before;
+        lock.lock();
+        try {
+            before = commits;
+            group = takeGroup();
+        } finally {
+            lock.unlock();
+        }
+
+        IOException failure;
+        try {
+            if (group != null)
+                commitGroup(group);
+        } finally {
+            lock.lock();
+            try {
+                while (committing > 0)
+                    idle.awaitUninterruptibly();
+                failure = getFailure(before);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Get the failures of the files committed before a call to
+     * {@link #flush()} as one exception. Must be called with the lock held.
+     *
+     * @param before
+     *            The number of commits when flush was called.
+     * @return The exception, or {@code null} if no such file failed.
+     */
+    private IOException getFailure(long before) {
+        File first = null;
+        IOException error = null;
+        int count = 0;
+        for (Map.Entry<File, Failure> e : failures.entrySet()) {
+            if (e.getValue().seq >= before)
+                continue;
+            if (first == null) {
+                first = e.getKey();
+                error = e.getValue().error;
+            }
+            count++;
+        }
+        if (first == null)
+            return null;
+
+        return new IOException("Could not commit " + first
+                + (count > 1 ? " and " + (count - 1) + " other files" : "")
+                + ".", error);
+    }
+
+    /**
+     * Take the pending files out, to be committed without the lock. Must be
+     * called with the lock held.
+     *
+     * @return The group, or {@code null} if no file is pending.
+     */
+    private List<Pending> takeGroup() {
+        if (pending.isEmpty())
+            return null;
+
+        List<Pending> group = new ArrayList<Pending>(pending);
+        pending.clear();
+        committing++;
+        return group;
+    }
+
+    /**
+     * Sync and rename a group taken by {@link #takeGroup()}, then tell the
+     * listeners.
+     */
+    private void commitGroup(List<Pending> group) throws IOException {
+        try {
+            renameGroup(group);
+        } finally {
+            lock.lock();
+            try {
+                if (--committing == 0)
+                    idle.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void renameGroup(List<Pending> group) throws IOException {
+        int renamed = 0;
+        IOException error = null;
+        try {
+            for (Pending p : group)
+                force(p.tmp);
+
+            Set<File> dirs = new LinkedHashSet<File>();
+            for (Pending p : group) {
+                FileUtils.rename(p.tmp, p.target);
+                renamed++;
+                dirs.add(p.target.getAbsoluteFile().getParentFile());
+            }
+            for (File dir : dirs)
+                forceDirectory(dir);
+        } catch (IOException e) {
+            error = e;
+        }
+
+        if (error != null) {
+            lock.lock();
+            try {
+                for (int i = renamed; i < group.size(); i++)
+                    failures.put(group.get(i).target, new Failure(group
+                            .get(i).seq, error));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        for (int i = 0; i < group.size(); i++) {
+            Pending p = group.get(i);
+            if (p.listener == null)
+                continue;
+            if (i < renamed)
+                p.listener.committed(p.target);
+            else
+                p.listener.failed(p.target, error);
+        }
+        if (error != null)
+            throw error;
+    }
+
+    private static void force(File f) throws IOException {
+        FileChannel channel = FileChannel.open(f.toPath(),
+                StandardOpenOption.WRITE);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Sync a directory, so that the renames in it are durable.
+     * <p>
+     * Not all platforms can open a directory, in which case this does
+     * nothing.
+     */
+    private static void forceDirectory(File dir) {
+        try {
+            FileChannel channel = FileChannel.open(dir.toPath(),
+                    StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Directories cannot be synced on this platform.
+        }
+    }
+
+}
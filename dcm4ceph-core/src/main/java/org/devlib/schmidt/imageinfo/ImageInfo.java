@@ -18,13 +18,16 @@ import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.util.Vector;
 
 /**
  * Get file format, image resolution, number of bits per pixel and optionally
  * number of images, comments and physical resolution from
  * JPEG, GIF, BMP, PCX, PNG, IFF, RAS, PBM, PGM, PPM and PSD files
- * (or input streams).
+ * (or input streams), and TIFF files given as a {@link ByteBuffer}.
  * <p>
  * Use the class like this:
  * <pre>
@@ -138,6 +141,11 @@ import java.util.Vector;
  *  Set package of ImageInfo class to org.devlib.schmidt.imageinfo (a package
  *  was repeatedly requested by some users).
  *  Released as 1.7.</li>
+ * <li><strong>dcm4ceph</strong> Added {@link #setInput(ByteBuffer, ReadableByteChannel)},
+ *  which parses headers from one bulk read and only reads more from the channel
+ *  when a header crosses the end of the buffer. Added TIFF support for that input.
+ *  The header checks read into one scratch array per instance instead of
+ *  allocating arrays for each check.</li>
  * </ul>
  * @author Marco Schmidt
  */
@@ -208,6 +216,14 @@ public class ImageInfo {
 	/** Return value of {@link #getFormat()} for PSD streams. */
 	public static final int FORMAT_PSD = 10;
 
+	/**
+	 * Return value of {@link #getFormat()} for TIFF streams.
+	 * TIFF is only recognized with {@link #setInput(ByteBuffer, ReadableByteChannel)},
+	 * because the image file directory can be anywhere in the file.
+	 * ImageInfo can extract physical resolution from TIFFs.
+	 */
+	public static final int FORMAT_TIFF = 11;
+
 /*	public static final int COLOR_TYPE_UNKNOWN = -1;
 	public static final int COLOR_TYPE_TRUECOLOR_RGB = 0;
 	public static final int COLOR_TYPE_PALETTED = 1;
@@ -222,7 +238,7 @@ public class ImageInfo {
 	private static final String[] FORMAT_NAMES =
 		{"JPEG", "GIF", "PNG", "BMP", "PCX",
 		 "IFF", "RAS", "PBM", "PGM", "PPM",
-		 "PSD"};
+		 "PSD", "TIFF"};
 
 	/**
 	 * The names of the MIME types for all supported file formats.
@@ -232,7 +248,7 @@ public class ImageInfo {
 	private static final String[] MIME_TYPE_STRINGS =
 		{"image/jpeg", "image/gif", "image/png", "image/bmp", "image/pcx",
 		 "image/iff", "image/ras", "image/x-portable-bitmap", "image/x-portable-graymap", "image/x-portable-pixmap",
-		 "image/psd"};
+		 "image/psd", "image/tiff"};
 
 	private int width;
 	private int height;
@@ -242,6 +258,9 @@ public class ImageInfo {
 	private int format;
 	private InputStream in;
 	private DataInput din;
+	private ByteBuffer buf;
+	private ReadableByteChannel channel;
+	private long bufferOffset;
 	private boolean collectComments = true;
 	private Vector comments;
 	private boolean determineNumberOfImages;
@@ -250,6 +269,9 @@ public class ImageInfo {
 	private int physicalWidthDpi;
 	private int bitBuf;
 	private int bitPos;
+	// Reused by the checks for the fixed size headers, so that a check
+	// allocates nothing unless it collects comments.
+	private final byte[] scratch = new byte[64];
 
 	private void addComment(String s) {
 		if (comments == null) {
@@ -273,7 +295,9 @@ public class ImageInfo {
 		numberOfImages = 1;
 		physicalHeightDpi = -1;
 		physicalWidthDpi = -1;
-		comments = null;
+		if (comments != null) {
+			comments.removeAllElements();
+		}
 		try {
 			int b1 = read() & 0xff;
 			int b2 = read() & 0xff;
@@ -312,6 +336,10 @@ public class ImageInfo {
 			if (b1 == 0x38 && b2 == 0x42) {
 				return checkPsd();
 			}
+			else
+			if ((b1 == 0x49 && b2 == 0x49) || (b1 == 0x4d && b2 == 0x4d)) {
+				return checkTiff(b1 == 0x49);
+			}
 			else {
 				return false;
 			}
@@ -321,8 +349,8 @@ public class ImageInfo {
 	}
 
 	private boolean checkBmp() throws IOException {
-		byte[] a = new byte[44];
-		if (read(a) != a.length) {
+		byte[] a = scratch;
+		if (read(a, 0, 44) != 44) {
 			return false;
 		}
 		width = getIntLittleEndian(a, 16);
@@ -351,8 +379,8 @@ public class ImageInfo {
 	private boolean checkGif() throws IOException {
 		final byte[] GIF_MAGIC_87A = {0x46, 0x38, 0x37, 0x61};
 		final byte[] GIF_MAGIC_89A = {0x46, 0x38, 0x39, 0x61};
-		byte[] a = new byte[11]; // 4 from the GIF signature + 7 from the global header
-		if (read(a) != 11) {
+		byte[] a = scratch; // 4 from the GIF signature + 7 from the global header
+		if (read(a, 0, 11) != 11) {
 			return false;
 		}
 		if ((!equals(a, 0, GIF_MAGIC_89A, 0, 4)) &&
@@ -469,7 +497,7 @@ public class ImageInfo {
 	}
 
 	private boolean checkIff() throws IOException {
-		byte[] a = new byte[10];
+		byte[] a = scratch;
 		// read remaining 2 bytes of file id, 4 bytes file size
 		// and 4 bytes IFF subformat
 		if (read(a, 0, 10) != 10) {
@@ -510,7 +538,7 @@ public class ImageInfo {
 	}
 
 	private boolean checkJpeg() throws IOException {
-		byte[] data = new byte[12];
+		byte[] data = scratch;
 		while (true) {
 			if (read(data, 0, 4) != 4) {
 				return false;
@@ -547,11 +575,11 @@ public class ImageInfo {
 			else
 			if (collectComments && size > 2 && marker == 0xfffe) { // comment
 				size -= 2;
-				byte[] chars = new byte[size];
+				byte[] chars = size <= scratch.length ? scratch : new byte[size];
 				if (read(chars, 0, size) != size) {
 					return false;
 				}
-				String comment = new String(chars, "iso-8859-1");
+				String comment = new String(chars, 0, size, "iso-8859-1");
 				comment = comment.trim();
 				addComment(comment);
 			}
@@ -573,9 +601,88 @@ public class ImageInfo {
 		}
 	}
 
+	private boolean checkTiff(boolean littleEndian) throws IOException {
+		if (buf == null) {
+			return false; // following the IFD offset needs random access
+		}
+		byte[] a = scratch;
+		if (read(a, 0, 6) != 6) {
+			return false;
+		}
+		if (getShort(a, 0, littleEndian) != 42) {
+			return false;
+		}
+		long ifd = getInt(a, 2, littleEndian) & 0xffffffffL;
+		if (!seek(ifd) || read(a, 0, 2) != 2) {
+			return false;
+		}
+		int entries = getShort(a, 0, littleEndian);
+		int bitsPerSample = 1;
+		long bitsPerSampleOffset = -1;
+		int samplesPerPixel = 1;
+		long xResolutionOffset = -1;
+		long yResolutionOffset = -1;
+		int resolutionUnit = 2;
+		for (int i = 0; i < entries; i++) {
+			if (read(a, 0, 12) != 12) {
+				return false;
+			}
+			int tag = getShort(a, 0, littleEndian);
+			int type = getShort(a, 2, littleEndian);
+			int count = getInt(a, 4, littleEndian);
+			// SHORT values are stored left-justified in the value field
+			int value = type == 3 ? getShort(a, 8, littleEndian) : getInt(a, 8, littleEndian);
+			switch (tag) {
+				case 256: width = value; break;
+				case 257: height = value; break;
+				case 258:
+					if (count <= 2) {
+						bitsPerSample = value;
+					} else {
+						bitsPerSampleOffset = value & 0xffffffffL;
+					}
+					break;
+				case 277: samplesPerPixel = value; break;
+				case 282: xResolutionOffset = value & 0xffffffffL; break;
+				case 283: yResolutionOffset = value & 0xffffffffL; break;
+				case 296: resolutionUnit = value; break;
+			}
+		}
+		if (bitsPerSampleOffset >= 0) {
+			if (!seek(bitsPerSampleOffset) || read(a, 0, 2) != 2) {
+				return false;
+			}
+			bitsPerSample = getShort(a, 0, littleEndian);
+		}
+		bitsPerPixel = bitsPerSample * samplesPerPixel;
+		if (resolutionUnit == 2 || resolutionUnit == 3) {
+			float factor = resolutionUnit == 3 ? 2.54f : 1.0f;
+			float x = readTiffRational(xResolutionOffset, littleEndian);
+			if (x > 0) {
+				setPhysicalWidthDpi((int)(x * factor));
+			}
+			float y = readTiffRational(yResolutionOffset, littleEndian);
+			if (y > 0) {
+				setPhysicalHeightDpi((int)(y * factor));
+			}
+		}
+		format = FORMAT_TIFF;
+		return (width > 0 && height > 0 && bitsPerPixel > 0);
+	}
+
+	private float readTiffRational(long offset, boolean littleEndian) throws IOException {
+		byte[] a = scratch;
+		if (offset < 0 || !seek(offset) || read(a, 0, 8) != 8) {
+			return -1;
+		}
+		long numerator = getInt(a, 0, littleEndian) & 0xffffffffL;
+		long denominator = getInt(a, 4, littleEndian) & 0xffffffffL;
+		return denominator == 0 ? -1 : (float)numerator / denominator;
+	}
+
 	private boolean checkPcx() throws IOException {
-		byte[] a = new byte[64];
-		if (read(a) != a.length) {
+		byte[] a = scratch;
+		if (read(a, 0, 64) != 64) {
 			return false;
 		}
 		if (a[0] != 1) { // encoding, 1=RLE is only valid value
@@ -613,8 +720,8 @@ public class ImageInfo {
 
 	private boolean checkPng() throws IOException {
 		final byte[] PNG_MAGIC = {0x4e, 0x47, 0x0d, 0x0a, 0x1a, 0x0a};
-		byte[] a = new byte[27];
-		if (read(a) != 27) {
+		byte[] a = scratch;
+		if (read(a, 0, 27) != 27) {
 			return false;
 		}
 		if (!equals(a, 0, PNG_MAGIC, 0, 6)) {
@@ -707,8 +814,8 @@ public class ImageInfo {
 	}
 
 	private boolean checkPsd() throws IOException {
-		byte[] a = new byte[24];
-		if (read(a) != a.length) {
+		byte[] a = scratch;
+		if (read(a, 0, 24) != 24) {
 			return false;
 		}
 		final byte[] PSD_MAGIC = {0x50, 0x53};
@@ -725,8 +832,8 @@ public class ImageInfo {
 	}
 
 	private boolean checkRas() throws IOException {
-		byte[] a = new byte[14];
-		if (read(a) != a.length) {
+		byte[] a = scratch;
+		if (read(a, 0, 14) != 14) {
 			return false;
 		}
 		final byte[] RAS_MAGIC = {0x6a, (byte)0x95};
@@ -828,6 +935,10 @@ public class ImageInfo {
 			a[offs + 3] & 0xff;
 	}
 
+	private static int getInt(byte[] a, int offs, boolean littleEndian) {
+		return littleEndian ? getIntLittleEndian(a, offs) : getIntBigEndian(a, offs);
+	}
+
 	private static int getIntLittleEndian(byte[] a, int offs) {
 		return
 			(a[offs + 3] & 0xff) << 24 |
@@ -948,6 +1059,10 @@ public class ImageInfo {
 			(a[offs + 1] & 0xff);
 	}
 
+	private static int getShort(byte[] a, int offs, boolean littleEndian) {
+		return littleEndian ? getShortLittleEndian(a, offs) : getShortBigEndian(a, offs);
+	}
+
 	private static int getShortLittleEndian(byte[] a, int offs) {
 		return (a[offs] & 0xff) | (a[offs + 1] & 0xff) << 8;
 	}
@@ -1084,7 +1199,60 @@ public class ImageInfo {
 		}
 	}
 
+	/**
+	 * Refill the buffer from the channel, keeping the bytes not yet consumed.
+	 * @return false if no more bytes are available
+	 */
+	private boolean fill() throws IOException {
+		if (channel == null) {
+			return false;
+		}
+		bufferOffset += buf.position();
+		buf.compact();
+		int n = channel.read(buf);
+		buf.flip();
+		return n > 0;
+	}
+
+	/**
+	 * Move to an absolute offset of a buffered input, reusing the bytes already
+	 * in the buffer when possible.
+	 * @return false if the offset cannot be reached
+	 */
+	private boolean seek(long offset) throws IOException {
+		if (offset >= bufferOffset && offset <= bufferOffset + buf.limit()) {
+			buf.position((int)(offset - bufferOffset));
+			return true;
+		}
+		if (channel instanceof SeekableByteChannel) {
+			((SeekableByteChannel)channel).position(offset);
+			bufferOffset = offset;
+			buf.clear();
+			buf.limit(0);
+			return true;
+		}
+		long num = offset - (bufferOffset + buf.position());
+		if (num < 0) {
+			return false;
+		}
+		while (num > buf.remaining()) {
+			num -= buf.remaining();
+			buf.position(buf.limit());
+			if (!fill()) {
+				return false;
+			}
+		}
+		buf.position(buf.position() + (int)num);
+		return true;
+	}
+
 	private int read() throws IOException {
+		if (buf != null) {
+			if (!buf.hasRemaining() && !fill()) {
+				return -1;
+			}
+			return buf.get() & 0xff;
+		} else
 		if (in != null) {
 			return in.read();
 		} else {
@@ -1093,6 +1261,9 @@ public class ImageInfo {
 	}
 
 	private int read(byte[] a) throws IOException {
+		if (buf != null) {
+			return read(a, 0, a.length);
+		} else
 		if (in != null) {
 			return in.read(a);
 		} else {
@@ -1102,6 +1273,18 @@ public class ImageInfo {
 	}
 
 	private int read(byte[] a, int offset, int num) throws IOException {
+		if (buf != null) {
+			int total = 0;
+			while (total < num) {
+				if (!buf.hasRemaining() && !fill()) {
+					break;
+				}
+				int n = Math.min(num - total, buf.remaining());
+				buf.get(a, offset + total, n);
+				total += n;
+			}
+			return (total == 0 && num > 0) ? -1 : total;
+		} else
 		if (in != null) {
 			return in.read(a, offset, num);
 		} else {
@@ -1134,11 +1317,7 @@ public class ImageInfo {
 		int bitsLeft = numBits;
 		long result = 0;
 		if (bitPos == 0) { //no value in the buffer - read a byte
-			if (in != null) {
-				bitBuf = in.read();
-			} else {
-				bitBuf = din.readByte();
-			}
+			bitBuf = read();
 			bitPos = 8;
 		}
 
@@ -1152,11 +1331,7 @@ public class ImageInfo {
                 bitsLeft -= bitPos;
 
                 // Get the next byte from the input stream
-                if (in != null) {
-                  bitBuf = in.read();
-                } else {
-                  bitBuf = din.readByte();
-                }
+                bitBuf = read();
                 bitPos = 8;
             }
             else
@@ -1252,6 +1427,8 @@ public class ImageInfo {
 	public void setInput(DataInput dataInput) {
 		din = dataInput;
 		in = null;
+		buf = null;
+		channel = null;
 	}
 
 	/**
@@ -1261,6 +1438,36 @@ public class ImageInfo {
 	public void setInput(InputStream inputStream) {
 		in = inputStream;
 		din = null;
+		buf = null;
+		channel = null;
+	}
+
+	/**
+	 * Set the input to a buffer holding the first bytes of an image.
+	 * Headers that fit into the buffer are parsed without any further I/O.
+	 * @param buffer the image data, ready to be read (i.e. flipped)
+	 */
+	public void setInput(ByteBuffer buffer) {
+		setInput(buffer, null);
+	}
+
+	/**
+	 * Set the input to a buffer holding the first bytes of an image, and
+	 * the channel they were read from.
+	 * Headers are parsed from the buffer; only when a header crosses its end
+	 * is the buffer compacted and refilled from the channel, which must be
+	 * positioned right after the buffered bytes.
+	 * If the channel is a {@link SeekableByteChannel}, skips past the end
+	 * of the buffer are done by moving the channel position.
+	 * @param buffer the first bytes of the image, ready to be read (i.e. flipped)
+	 * @param moreInput the channel to read further bytes from, or <code>null</code>
+	 */
+	public void setInput(ByteBuffer buffer, ReadableByteChannel moreInput) {
+		buf = buffer;
+		channel = moreInput;
+		bufferOffset = 0;
+		in = null;
+		din = null;
 	}
 
 	private void setPhysicalHeightDpi(int newValue) {
@@ -1272,6 +1479,12 @@ public class ImageInfo {
 	}
 
 	private void skip(int num) throws IOException {
+		if (buf != null) {
+			if (!seek(bufferOffset + buf.position() + num)) {
+				throw new IOException("Cannot skip " + num + " bytes");
+			}
+			return;
+		}
 		while (num > 0) {
 			long result;
 			if (in != null) {
@@ -1,6 +1,7 @@
 package org.antoniomagni.dcm4ceph.core;
 
 import java.io.File;
+import java.io.IOException;
 
 
 /**
@@ -12,8 +13,9 @@ public class CephalogramTest {
 
     /**
      * @param args
+     * @throws IOException
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
 
         File cephfile1 = new File(args[0]);
         File cephfile2 = new File(args[1]);
@@ -0,0 +1,78 @@
+package org.antoniomagni.dcm4ceph.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.antoniomagni.dcm4ceph.util.TempFiles;
+
+/**
+ * Checks that content UIDs only depend on the content.
+ *
+ * @author afm
+ *
+ */
+public class ContentUIDTest extends TestCase {
+
+    private File dir;
+
+    protected void setUp() throws IOException {
+        dir = TempFiles.createDirectory();
+    }
+
+    protected void tearDown() {
+        TempFiles.delete(dir);
+    }
+
+    private Cephalogram ceph(String name, String pixels, String properties)
+            throws IOException {
+        File image = TempFiles.write(new File(dir, name + ".jpg"), pixels
+                .getBytes("US-ASCII"));
+        File props = TempFiles.write(new File(dir, name + ".properties"),
+                properties.getBytes("US-ASCII"));
+        Cephalogram ceph = new Cephalogram(image, props);
+        ceph.useContentUIDs();
+        return ceph;
+    }
+
+    public void testSameContentSameUIDs() throws IOException {
+        Cephalogram a = ceph("a", "pixels", "patientID=1\nstudyID=2\n");
+        Cephalogram b = ceph("b", "pixels", "patientID=1\nstudyID=2\n");
+        assertEquals(a.getUID(), b.getUID());
+        assertEquals(a.getSeriesUID(), b.getSeriesUID());
+        assertEquals(a.getStudyUID(), b.getStudyUID());
+        assertTrue(a.getUID().startsWith("2.25."));
+    }
+
+    public void testOtherPixelsSameStudy() throws IOException {
+        Cephalogram a = ceph("a", "lateral", "patientID=1\nstudyID=2\n");
+        Cephalogram b = ceph("b", "frontal", "patientID=1\nstudyID=2\n");
+        assertFalse(a.getUID().equals(b.getUID()));
+        assertEquals(a.getStudyUID(), b.getStudyUID());
+    }
+
+    public void testUnidentifiedImagesDoNotShareAStudy() throws IOException {
+        Cephalogram a = ceph("a", "lateral", "");
+        Cephalogram b = ceph("b", "frontal", "");
+        assertFalse(a.getStudyUID().equals(b.getStudyUID()));
+    }
+
+    public void testFiducialUIDsDependOnReferencedImages() {
+        Properties p = new Properties();
+        p.setProperty("label", "BB");
+        SBFiducialSet a = new SBFiducialSet(new String[] { "1.2.3", "1.2.4" },
+                p);
+        SBFiducialSet b = new SBFiducialSet(new String[] { "1.2.3", "1.2.5" },
+                p);
+        SBFiducialSet c = new SBFiducialSet(new String[] { "1.2.3", "1.2.4" },
+                p);
+        a.useContentUIDs("1.2");
+        b.useContentUIDs("1.2");
+        c.useContentUIDs("1.2");
+        assertFalse(a.getUID().equals(b.getUID()));
+        assertEquals(a.getUID(), c.getUID());
+    }
+
+}
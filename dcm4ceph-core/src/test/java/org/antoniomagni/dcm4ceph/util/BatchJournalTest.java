@@ -0,0 +1,127 @@
+package org.antoniomagni.dcm4ceph.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import junit.framework.TestCase;
+
+/**
+ * @author afm
+ *
+ */
+public class BatchJournalTest extends TestCase {
+
+    private File dir;
+
+    private File journalFile;
+
+    protected void setUp() throws IOException {
+        dir = TempFiles.createDirectory();
+        journalFile = new File(dir, BatchJournal.DEFAULT_NAME);
+    }
+
+    protected void tearDown() {
+        TempFiles.delete(dir);
+    }
+
+    private File output(String name, String content) throws IOException {
+        return TempFiles.write(new File(dir, name), content.getBytes("UTF-8"));
+    }
+
+    public void testReplay() throws IOException {
+        File a = output("a.dcm", "first");
+        File b = output("b.dcm", "second");
+
+        BatchJournal journal = new BatchJournal(journalFile);
+        journal.done("a.jpg", new File[] { a });
+        journal.done("b.jpg", new File[] { b }, new long[] { 42 });
+        journal.sync();
+        journal.close();
+
+        journal = new BatchJournal(journalFile);
+        try {
+            assertEquals(2, journal.size());
+            assertTrue(journal.isDone("a.jpg"));
+            assertTrue(journal.isDone("b.jpg"));
+            assertFalse(journal.isDone("c.jpg"));
+        } finally {
+            journal.close();
+        }
+    }
+
+    public void testTruncatedTailIsDropped() throws IOException {
+        File a = output("a.dcm", "first");
+        BatchJournal journal = new BatchJournal(journalFile);
+        journal.done("a.jpg", new File[] { a });
+        journal.close();
+        long complete = journalFile.length();
+
+        // A crash in the middle of the next entry.
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        try {
+            out.write("b.jpg\tb.d".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        journal = new BatchJournal(journalFile);
+        try {
+            assertEquals(1, journal.size());
+            assertFalse(journal.isDone("b.jpg"));
+            assertEquals(complete, journalFile.length());
+
+            journal.done("c.jpg", new File[] { a });
+        } finally {
+            journal.close();
+        }
+
+        journal = new BatchJournal(journalFile);
+        try {
+            assertEquals(2, journal.size());
+            assertTrue(journal.isDone("c.jpg"));
+        } finally {
+            journal.close();
+        }
+    }
+
+    public void testDeleteStartsOver() throws IOException {
+        File a = output("a.dcm", "first");
+        BatchJournal journal = new BatchJournal(journalFile);
+        journal.done("a.jpg", new File[] { a });
+        journal.delete();
+        journal.close();
+        assertFalse(journalFile.exists());
+
+        journal = new BatchJournal(journalFile);
+        try {
+            assertEquals(0, journal.size());
+            assertFalse(journal.isDone("a.jpg"));
+        } finally {
+            journal.close();
+        }
+    }
+
+    public void testChecksumWhileWriting() throws IOException {
+        File f = new File(dir, "out.dcm");
+        CRC32 crc = new CRC32();
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            ChecksumChannel channel = new ChecksumChannel(out.getChannel(),
+                    crc);
+            channel.write(ByteBuffer.wrap("DICM".getBytes("UTF-8")));
+            ByteBuffer direct = ByteBuffer.allocateDirect(1000);
+            for (int i = 0; i < 1000; i++)
+                direct.put((byte) i);
+            direct.flip();
+            while (direct.hasRemaining())
+                channel.write(direct);
+        } finally {
+            out.close();
+        }
+        assertEquals(BatchJournal.checksum(f), crc.getValue());
+    }
+
+}
@@ -0,0 +1,57 @@
+package org.antoniomagni.dcm4ceph.util;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * @author afm
+ *
+ */
+public class BufferPoolTest extends TestCase {
+
+    public void testReleasedBufferIsReused() {
+        BufferPool pool = new BufferPool(16, 2, false);
+        ByteBuffer buf = pool.acquire();
+        buf.put((byte) 1);
+        pool.release(buf);
+
+        ByteBuffer again = pool.acquire();
+        assertSame(buf, again);
+        assertEquals(0, again.position());
+        assertEquals(16, again.remaining());
+    }
+
+    public void testForeignBufferIsDropped() {
+        BufferPool pool = new BufferPool(16, 2, false);
+        ByteBuffer other = ByteBuffer.allocate(32);
+        pool.release(other);
+        assertNotSame(other, pool.acquire());
+    }
+
+    public void testDirectBuffersAreBounded() {
+        BufferPool pool = new BufferPool(16, 2, true);
+        ByteBuffer a = pool.acquire();
+        ByteBuffer b = pool.acquire();
+        ByteBuffer c = pool.acquire();
+        assertTrue(a.isDirect());
+        assertTrue(b.isDirect());
+        assertFalse(c.isDirect());
+
+        // The heap buffer is not kept, the direct ones are reused.
+        pool.release(c);
+        pool.release(a);
+        pool.release(b);
+        assertSame(a, pool.acquire());
+        assertSame(b, pool.acquire());
+        assertFalse(pool.acquire().isDirect());
+    }
+
+    public void testSharedPoolsUseHeapBuffersByDefault() {
+        if (System.getProperty("dcm4ceph.buffer.direct") != null)
+            return;
+        assertFalse(BufferPool.getIOPool().isDirect());
+        assertFalse(BufferPool.getSniffPool().isDirect());
+    }
+
+}
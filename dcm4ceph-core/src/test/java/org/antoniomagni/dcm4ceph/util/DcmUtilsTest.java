@@ -0,0 +1,43 @@
+package org.antoniomagni.dcm4ceph.util;
+
+import junit.framework.TestCase;
+
+/**
+ * @author afm
+ *
+ */
+public class DcmUtilsTest extends TestCase {
+
+    public void testNameBasedUIDIsDeterministic() {
+        String name = DcmUtils.nameKey("sop", "0123456789abcdef", "patient");
+        assertEquals(DcmUtils.createNameBasedUID(name), DcmUtils
+                .createNameBasedUID(name));
+        assertFalse(DcmUtils.createNameBasedUID(name).equals(
+                DcmUtils.createNameBasedUID(name + "x")));
+    }
+
+    public void testNameBasedUIDFormat() {
+        String uid = DcmUtils.createNameBasedUID("study|1");
+        assertTrue(uid, uid.startsWith("2.25."));
+        assertTrue(uid, uid.length() <= 64);
+        assertTrue(uid, uid.substring(5).matches("[1-9][0-9]*"));
+    }
+
+    public void testNameBasedUIDIsVersion5UUID() {
+        // uuid.uuid5(UUID('eec989ce-16f4-4fc2-859f-2c1c3a886b44'), 'study|1')
+        // computed with Python's uuid module.
+        assertEquals("2.25.63072211925886676436355390528139708687", DcmUtils
+                .createNameBasedUID("study|1"));
+    }
+
+    public void testNameKeyKeepsValuesApart() {
+        assertFalse(DcmUtils.nameKey("a|b", "c").equals(
+                DcmUtils.nameKey("a", "b|c")));
+        assertFalse(DcmUtils.nameKey(null, "c").equals(
+                DcmUtils.nameKey("", "c")));
+        assertFalse(DcmUtils.nameKey("-").equals(
+                DcmUtils.nameKey(new String[] { null })));
+        assertEquals(DcmUtils.nameKey("a", null), DcmUtils.nameKey("a", null));
+    }
+
+}
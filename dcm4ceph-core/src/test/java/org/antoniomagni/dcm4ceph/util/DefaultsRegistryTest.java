@@ -0,0 +1,64 @@
+package org.antoniomagni.dcm4ceph.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * @author afm
+ *
+ */
+public class DefaultsRegistryTest extends TestCase {
+
+    private static final String RESOURCE = "dcm4ceph-test-defaults.properties";
+
+    private File dir;
+
+    protected void setUp() throws IOException {
+        dir = TempFiles.createDirectory();
+    }
+
+    protected void tearDown() {
+        TempFiles.delete(dir);
+    }
+
+    private ClassLoader loader(String name, String value) throws IOException {
+        File root = new File(dir, name);
+        root.mkdirs();
+        Properties p = new Properties();
+        p.setProperty("patientName", value);
+        OutputStream out = new FileOutputStream(new File(root, RESOURCE));
+        try {
+            p.store(out, null);
+        } finally {
+            out.close();
+        }
+        return new URLClassLoader(new URL[] { root.toURI().toURL() }, null);
+    }
+
+    public void testCachedPerClassLoader() throws IOException {
+        ClassLoader a = loader("a", "A");
+        ClassLoader b = loader("b", "B");
+        assertEquals("A", DefaultsRegistry.getDefaults(a, RESOURCE)
+                .getProperty("patientName"));
+        assertEquals("B", DefaultsRegistry.getDefaults(b, RESOURCE)
+                .getProperty("patientName"));
+        assertEquals("A", DefaultsRegistry.getDefaults(a, RESOURCE)
+                .getProperty("patientName"));
+    }
+
+    public void testViewsAreIndependent() throws IOException {
+        ClassLoader a = loader("a", "A");
+        Properties first = DefaultsRegistry.getDefaults(a, RESOURCE);
+        first.setProperty("patientName", "changed");
+        assertEquals("A", DefaultsRegistry.getDefaults(a, RESOURCE)
+                .getProperty("patientName"));
+    }
+
+}
@@ -0,0 +1,203 @@
+package org.antoniomagni.dcm4ceph.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @author afm
+ *
+ */
+public class EncapsulatedPixelDataTest extends TestCase {
+
+    private static final int ITEM = 0xFFFEE000;
+
+    private static final int SEQUENCE_DELIMITATION_ITEM = 0xFFFEE0DD;
+
+    private File dir;
+
+    private File jpeg;
+
+    private byte[] stream;
+
+    protected void setUp() throws IOException {
+        dir = TempFiles.createDirectory();
+        // An odd length, so that the last fragment is padded.
+        stream = new byte[1001];
+        for (int i = 0; i < stream.length; i++)
+            stream[i] = (byte) (i * 31);
+        jpeg = TempFiles.write(new File(dir, "ceph.jpg"), stream);
+    }
+
+    protected void tearDown() {
+        TempFiles.delete(dir);
+    }
+
+    /**
+     * The items of encapsulated pixel data, the first being the offset table.
+     */
+    private static class Items {
+
+        final List<byte[]> items = new ArrayList<byte[]>();
+
+        Items(byte[] bytes) {
+            ByteBuffer buf = ByteBuffer.wrap(bytes).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            for (;;) {
+                int tag = buf.getInt();
+                int len = buf.getInt();
+                if (tag == SEQUENCE_DELIMITATION_ITEM) {
+                    assertEquals(0, len);
+                    break;
+                }
+                assertEquals(ITEM, tag);
+                byte[] value = new byte[len];
+                buf.get(value);
+                items.add(value);
+            }
+            assertFalse("Bytes after the delimitation item", buf
+                    .hasRemaining());
+        }
+
+        byte[] offsetTable() {
+            return items.get(0);
+        }
+
+        List<byte[]> fragments() {
+            return items.subList(1, items.size());
+        }
+
+        byte[] stream(int length) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (byte[] f : fragments())
+                out.write(f, 0, f.length);
+            byte[] all = out.toByteArray();
+            // Only the pad byte may follow the stream.
+            assertTrue(all.length - length <= 1);
+            for (int i = length; i < all.length; i++)
+                assertEquals(0, all[i]);
+            return Arrays.copyOf(all, length);
+        }
+    }
+
+    private byte[] toFile(int fragmentSize, boolean offsetTable, int fragments)
+            throws IOException {
+        File dcm = new File(dir, "ceph.dcm");
+        FileInputStream in = new FileInputStream(jpeg);
+        FileOutputStream out = new FileOutputStream(dcm);
+        try {
+            assertEquals(fragments, EncapsulatedPixelData.write(in
+                    .getChannel(), out.getChannel(), fragmentSize,
+                    offsetTable));
+        } finally {
+            out.close();
+            in.close();
+        }
+        return read(dcm);
+    }
+
+    private byte[] toStream(int fragmentSize, boolean offsetTable)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(jpeg);
+        try {
+            EncapsulatedPixelData.write(in.getChannel(), FileUtils
+                    .newChannel(out), fragmentSize, offsetTable);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] read(File f) throws IOException {
+        byte[] bytes = new byte[(int) f.length()];
+        FileChannel channel = new FileInputStream(f).getChannel();
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining() && channel.read(buf) >= 0)
+                ;
+        } finally {
+            channel.close();
+        }
+        return bytes;
+    }
+
+    public void testFragmentsWithOffsetTable() throws IOException {
+        Items items = new Items(toFile(256, true, 4));
+
+        // One frame, whose first fragment is the first item after the table.
+        byte[] table = items.offsetTable();
+        assertEquals(4, table.length);
+        assertEquals(0, ByteBuffer.wrap(table).order(ByteOrder.LITTLE_ENDIAN)
+                .getInt());
+
+        List<byte[]> fragments = items.fragments();
+        assertEquals(4, fragments.size());
+        assertEquals(256, fragments.get(0).length);
+        assertEquals(256, fragments.get(1).length);
+        assertEquals(256, fragments.get(2).length);
+        assertEquals(234, fragments.get(3).length);
+        assertTrue(Arrays.equals(stream, items.stream(stream.length)));
+    }
+
+    public void testEmptyOffsetTable() throws IOException {
+        Items items = new Items(toFile(256, false, 4));
+        assertEquals(0, items.offsetTable().length);
+        assertEquals(4, items.fragments().size());
+        assertTrue(Arrays.equals(stream, items.stream(stream.length)));
+    }
+
+    public void testSingleFragment() throws IOException {
+        Items items = new Items(toFile(0, true, 1));
+        assertEquals(1, items.fragments().size());
+        assertEquals(1002, items.fragments().get(0).length);
+        assertTrue(Arrays.equals(stream, items.stream(stream.length)));
+    }
+
+    public void testStreamMatchesFile() throws IOException {
+        assertTrue(Arrays.equals(toFile(128, true, 8), toStream(128, true)));
+    }
+
+    public void testOddFragmentSizeRejected() throws IOException {
+        FileInputStream in = new FileInputStream(jpeg);
+        try {
+            EncapsulatedPixelData.write(in.getChannel(), FileUtils
+                    .newChannel(new ByteArrayOutputStream()), 255, false);
+            fail("Odd fragment size accepted");
+        } catch (IllegalArgumentException e) {
+            // Items have an even length.
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testNonBlockingChannelRejected() throws IOException {
+        Pipe pipe = Pipe.open();
+        FileInputStream in = new FileInputStream(jpeg);
+        try {
+            pipe.sink().configureBlocking(false);
+            FileUtils.transferFully(in.getChannel(), 0, stream.length, pipe
+                    .sink());
+            fail("Non-blocking channel accepted");
+        } catch (IllegalBlockingModeException e) {
+            // A full pipe would make the transfer spin.
+        } finally {
+            in.close();
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package org.antoniomagni.dcm4ceph.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Temporary files for the tests.
+ *
+ * @author afm
+ *
+ */
+public class TempFiles {
+
+    private TempFiles() {
+    }
+
+    /**
+     * Create an empty temporary directory.
+     */
+    public static File createDirectory() throws IOException {
+        File dir = File.createTempFile("dcm4ceph", "");
+        dir.delete();
+        if (!dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+        return dir;
+    }
+
+    /**
+     * Write bytes to a file, replacing it.
+     */
+    public static File write(File f, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    /**
+     * Delete a file or directory tree.
+     */
+    public static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++)
+                delete(files[i]);
+        }
+        f.delete();
+    }
+
+}
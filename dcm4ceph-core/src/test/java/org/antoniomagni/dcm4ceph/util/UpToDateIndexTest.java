@@ -0,0 +1,114 @@
+package org.antoniomagni.dcm4ceph.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * @author afm
+ *
+ */
+public class UpToDateIndexTest extends TestCase {
+
+    private static final String OPTIONS = "fragmentSize=0,offsetTable=false";
+
+    private File dir;
+
+    private File image;
+
+    private File properties;
+
+    private File output;
+
+    protected void setUp() throws IOException {
+        dir = TempFiles.createDirectory();
+        image = write("ceph.jpg", "pixels");
+        properties = write("ceph.properties", "patientID=1");
+        output = write("ceph.dcm", "DICM pixels");
+    }
+
+    protected void tearDown() {
+        TempFiles.delete(dir);
+    }
+
+    private File write(String name, String content) throws IOException {
+        return TempFiles.write(new File(dir, name), content.getBytes("UTF-8"));
+    }
+
+    private UpToDateIndex converted(boolean hashing) throws IOException {
+        UpToDateIndex index = new UpToDateIndex(new File(dir,
+                UpToDateIndex.DEFAULT_NAME), hashing);
+        index.update(image, properties, output, null, OPTIONS);
+        return index;
+    }
+
+    public void testHit() throws IOException {
+        assertTrue(converted(false).isUpToDate(image, properties, output,
+                OPTIONS));
+    }
+
+    public void testMissWhenNotConverted() throws IOException {
+        UpToDateIndex index = new UpToDateIndex(new File(dir,
+                UpToDateIndex.DEFAULT_NAME), false);
+        assertFalse(index.isUpToDate(image, properties, output, OPTIONS));
+    }
+
+    public void testMissWhenOptionsChange() throws IOException {
+        assertFalse(converted(false).isUpToDate(image, properties, output,
+                "fragmentSize=65536,offsetTable=true"));
+    }
+
+    public void testMissWhenImageChanges() throws IOException {
+        UpToDateIndex index = converted(false);
+        write("ceph.jpg", "other pixels");
+        assertFalse(index.isUpToDate(image, properties, output, OPTIONS));
+    }
+
+    public void testMissWhenOutputChanges() throws IOException {
+        UpToDateIndex index = converted(false);
+        write("ceph.dcm", "DICM");
+        assertFalse(index.isUpToDate(image, properties, output, OPTIONS));
+    }
+
+    public void testTouchedFileWithoutHashes() throws IOException {
+        UpToDateIndex index = converted(false);
+        image.setLastModified(image.lastModified() - 10000);
+        assertFalse(index.isUpToDate(image, properties, output, OPTIONS));
+    }
+
+    public void testTouchedFileWithHashes() throws IOException {
+        UpToDateIndex index = converted(true);
+        image.setLastModified(image.lastModified() - 10000);
+        assertTrue(index.isUpToDate(image, properties, output, OPTIONS));
+
+        // Same size, other content.
+        write("ceph.jpg", "PIXELS");
+        image.setLastModified(image.lastModified() - 20000);
+        assertFalse(index.isUpToDate(image, properties, output, OPTIONS));
+    }
+
+    public void testSavedAndLoaded() throws IOException {
+        converted(false).save();
+        UpToDateIndex index = new UpToDateIndex(new File(dir,
+                UpToDateIndex.DEFAULT_NAME), false);
+        assertEquals(1, index.size());
+        assertTrue(index.isUpToDate(image, properties, output, OPTIONS));
+        assertFalse(index.isUpToDate(image, properties, output, "other"));
+    }
+
+    public void testEntryWithoutOptionsIsStale() throws IOException {
+        String line = image.getAbsolutePath() + "\t"
+                + output.getAbsolutePath() + "\t" + output.length() + "\t"
+                + image.length() + "\t" + image.lastModified() + "\t-\t"
+                + properties.length() + "\t" + properties.lastModified()
+                + "\t-\n";
+        write(UpToDateIndex.DEFAULT_NAME, line);
+
+        UpToDateIndex index = new UpToDateIndex(new File(dir,
+                UpToDateIndex.DEFAULT_NAME), false);
+        assertEquals(1, index.size());
+        assertFalse(index.isUpToDate(image, properties, output, OPTIONS));
+    }
+
+}
@@ -0,0 +1,176 @@
+package org.antoniomagni.dcm4ceph.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @author afm
+ *
+ */
+public class WritePolicyTest extends TestCase {
+
+    private File dir;
+
+    protected void setUp() throws IOException {
+        dir = TempFiles.createDirectory();
+    }
+
+    protected void tearDown() {
+        TempFiles.delete(dir);
+    }
+
+    private File temp(String name) throws IOException {
+        return TempFiles.write(new File(dir, name + ".part"), name
+                .getBytes("UTF-8"));
+    }
+
+    /**
+     * Records what a listener is told.
+     */
+    private static class Recorder implements WritePolicy.Listener {
+
+        final List<File> committed = new ArrayList<File>();
+
+        final List<File> failed = new ArrayList<File>();
+
+        public void committed(File target) {
+            committed.add(target);
+        }
+
+        public void failed(File target, IOException e) {
+            failed.add(target);
+        }
+    }
+
+    public void testGroupIsCommittedWhenFull() throws IOException {
+        WritePolicy policy = new WritePolicy(WritePolicy.Sync.GROUP, 2);
+        Recorder recorder = new Recorder();
+        File a = new File(dir, "a.dcm");
+        File b = new File(dir, "b.dcm");
+
+        policy.commit(temp("a"), a, recorder);
+        assertFalse(a.exists());
+        assertTrue(recorder.committed.isEmpty());
+
+        policy.commit(temp("b"), b, recorder);
+        assertTrue(a.exists());
+        assertTrue(b.exists());
+        assertEquals(2, recorder.committed.size());
+        assertFalse(new File(dir, "a.part").exists());
+    }
+
+    public void testFlushCommitsPartialGroup() throws IOException {
+        WritePolicy policy = new WritePolicy(WritePolicy.Sync.GROUP, 8);
+        File a = new File(dir, "a.dcm");
+
+        policy.commit(temp("a"), a);
+        assertFalse(a.exists());
+
+        policy.flush();
+        assertTrue(a.exists());
+    }
+
+    public void testFailedGroupIsReportedToListenersAndFlush()
+            throws IOException {
+        WritePolicy policy = new WritePolicy(WritePolicy.Sync.GROUP, 2);
+        Recorder recorder = new Recorder();
+        File a = new File(dir, "a.dcm");
+        File b = new File(dir, "b.dcm");
+
+        // The temporary file of a is missing, so the group cannot be synced.
+        policy.commit(new File(dir, "missing.part"), a);
+        policy.commit(temp("b"), b, recorder);
+        assertEquals(1, recorder.failed.size());
+        assertEquals(b, recorder.failed.get(0));
+        assertFalse(b.exists());
+
+        try {
+            policy.flush();
+            fail("The failed group was not reported.");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    public void testFailedGroupIsThrownWithoutListener() throws IOException {
+        WritePolicy policy = new WritePolicy(WritePolicy.Sync.GROUP, 2);
+
+        policy.commit(temp("a"), new File(dir, "a.dcm"));
+        try {
+            policy.commit(new File(dir, "missing.part"), new File(dir,
+                    "b.dcm"));
+            fail("The failed group was not thrown.");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    public void testCommitAgainClearsFailure() throws IOException {
+        WritePolicy policy = new WritePolicy(WritePolicy.Sync.GROUP, 2);
+        Recorder recorder = new Recorder();
+        File a = new File(dir, "a.dcm");
+        File b = new File(dir, "b.dcm");
+
+        policy.commit(new File(dir, "missing.part"), a, recorder);
+        policy.commit(temp("b"), b, recorder);
+        assertEquals(2, recorder.failed.size());
+
+        policy.commit(temp("a"), a, recorder);
+        policy.commit(temp("b"), b, recorder);
+        policy.flush();
+        assertTrue(a.exists());
+        assertTrue(b.exists());
+    }
+
+    public void testFlushWaitsForOtherThreads() throws Exception {
+        final WritePolicy policy = new WritePolicy(WritePolicy.Sync.GROUP, 4);
+        final List<IOException> errors = new ArrayList<IOException>();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 16; j++) {
+                            String name = "t" + n + "-" + j;
+                            policy.commit(temp(name), new File(dir, name
+                                    + ".dcm"));
+                        }
+                        policy.flush();
+                    } catch (IOException e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        assertTrue(errors.isEmpty());
+        for (int i = 0; i < threads.length; i++)
+            for (int j = 0; j < 16; j++)
+                assertTrue(new File(dir, "t" + i + "-" + j + ".dcm").exists());
+    }
+
+    public void testPerFileFailureIsThrown() throws IOException {
+        WritePolicy policy = new WritePolicy(WritePolicy.Sync.PER_FILE);
+        Recorder recorder = new Recorder();
+        try {
+            policy.commit(new File(dir, "missing.part"), new File(dir,
+                    "a.dcm"), recorder);
+            fail("The failure was not thrown.");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertTrue(recorder.failed.isEmpty());
+        policy.flush();
+    }
+
+}
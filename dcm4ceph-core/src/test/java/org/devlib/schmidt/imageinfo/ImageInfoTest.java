@@ -0,0 +1,132 @@
+package org.devlib.schmidt.imageinfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the buffer input of {@link ImageInfo} parses headers as the
+ * stream input does.
+ *
+ * @author afm
+ *
+ */
+public class ImageInfoTest extends TestCase {
+
+    /**
+     * A JPEG header with a JFIF APP0 segment at 300 DPI, the given comments
+     * and a 640 x 480 8 bit gray frame.
+     */
+    private static byte[] jpeg(String[] comments) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] { (byte) 0xff, (byte) 0xd8 });
+        out.write(new byte[] { (byte) 0xff, (byte) 0xe0, 0, 16, 'J', 'F',
+                'I', 'F', 0, 1, 1, 1, 0x01, 0x2c, 0x01, 0x2c, 0, 0 });
+        for (int i = 0; i < comments.length; i++) {
+            byte[] c = comments[i].getBytes("iso-8859-1");
+            out.write(new byte[] { (byte) 0xff, (byte) 0xfe,
+                    (byte) ((c.length + 2) >> 8), (byte) (c.length + 2) });
+            out.write(c);
+        }
+        out.write(new byte[] { (byte) 0xff, (byte) 0xc0, 0, 11, 8, 0x01,
+                (byte) 0xe0, 0x02, (byte) 0x80, 1, 1, 0x11, 0 });
+        out.write(new byte[] { (byte) 0xff, (byte) 0xd9 });
+        return out.toByteArray();
+    }
+
+    private static ImageInfo check(ImageInfo ii) {
+        ii.setDetermineImageNumber(true);
+        ii.setCollectComments(true);
+        assertTrue(ii.check());
+        return ii;
+    }
+
+    private static ImageInfo stream(byte[] image) {
+        ImageInfo ii = new ImageInfo();
+        ii.setInput(new ByteArrayInputStream(image));
+        return check(ii);
+    }
+
+    private static ImageInfo buffer(byte[] image) {
+        ImageInfo ii = new ImageInfo();
+        ii.setInput(ByteBuffer.wrap(image));
+        return check(ii);
+    }
+
+    /**
+     * Only the first bytes are buffered, the rest is read from a channel.
+     */
+    private static ImageInfo split(byte[] image, int buffered) {
+        ByteBuffer first = ByteBuffer.allocate(buffered);
+        first.put(image, 0, buffered);
+        first.flip();
+        ImageInfo ii = new ImageInfo();
+        ii.setInput(first, Channels.newChannel(new ByteArrayInputStream(
+                image, buffered, image.length - buffered)));
+        return check(ii);
+    }
+
+    private static void assertSameInfo(ImageInfo expected, ImageInfo actual) {
+        assertEquals(expected.getFormat(), actual.getFormat());
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getBitsPerPixel(), actual.getBitsPerPixel());
+        assertEquals(expected.getPhysicalWidthDpi(), actual
+                .getPhysicalWidthDpi());
+        assertEquals(expected.getPhysicalHeightDpi(), actual
+                .getPhysicalHeightDpi());
+        assertEquals(expected.getNumberOfComments(), actual
+                .getNumberOfComments());
+        for (int i = 0; i < expected.getNumberOfComments(); i++)
+            assertEquals(expected.getComment(i), actual.getComment(i));
+    }
+
+    public void testJpegHeader() throws IOException {
+        ImageInfo ii = stream(jpeg(new String[0]));
+        assertEquals(ImageInfo.FORMAT_JPEG, ii.getFormat());
+        assertEquals(640, ii.getWidth());
+        assertEquals(480, ii.getHeight());
+        assertEquals(8, ii.getBitsPerPixel());
+        assertEquals(300, ii.getPhysicalWidthDpi());
+        assertEquals(300, ii.getPhysicalHeightDpi());
+    }
+
+    public void testBufferModeMatchesStreamMode() throws IOException {
+        byte[] image = jpeg(new String[] { "scanned", "ceph" });
+        ImageInfo expected = stream(image);
+        assertSameInfo(expected, buffer(image));
+        for (int n = 1; n < image.length; n++)
+            assertSameInfo(expected, split(image, n));
+    }
+
+    /**
+     * A comment shorter than the scratch array of the header checks must not
+     * pick up bytes of earlier reads.
+     */
+    public void testShortComment() throws IOException {
+        byte[] image = jpeg(new String[] { "a rather longer first comment",
+                "hi" });
+        ImageInfo[] infos = { stream(image), buffer(image), split(image, 8) };
+        for (int i = 0; i < infos.length; i++) {
+            assertEquals(2, infos[i].getNumberOfComments());
+            assertEquals("a rather longer first comment", infos[i]
+                    .getComment(0));
+            assertEquals("hi", infos[i].getComment(1));
+        }
+    }
+
+    public void testInstanceReuse() throws IOException {
+        ImageInfo ii = new ImageInfo();
+        ii.setInput(ByteBuffer.wrap(jpeg(new String[] { "first" })));
+        check(ii);
+        ii.setInput(ByteBuffer.wrap(jpeg(new String[] { "x" })));
+        check(ii);
+        assertEquals(1, ii.getNumberOfComments());
+        assertEquals("x", ii.getComment(0));
+    }
+
+}
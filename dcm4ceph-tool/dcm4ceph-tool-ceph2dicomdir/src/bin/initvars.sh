@@ -40,11 +40,20 @@ else
 fi
 
 # Setup the classpath
+# The jars are sorted, so that the classpath is always the same, as the class
+# data sharing archive requires.
 CP="$DCM4CEPH_HOME/etc/"
-for JAR in $(find "$(cd ../lib; pwd)" -name "*.jar"); do
+for JAR in $(find "$DCM4CEPH_HOME/lib" -name "*.jar" | sort); do
     CP="$CP:$JAR"
 done
 
+# Use the class data sharing archive made by cdsarchive, if there is one.
+# A JVM that cannot map it just starts without it.
+CDS_ARCHIVE="$DCM4CEPH_HOME/lib/dcm4ceph.jsa"
+if [ -f "$CDS_ARCHIVE" ]; then
+    JAVA_OPTS="$JAVA_OPTS -XX:+IgnoreUnrecognizedVMOptions -Xshare:auto -XX:SharedArchiveFile=$CDS_ARCHIVE"
+fi
+
 # For Cygwin, switch paths to Windows format before running java
 if $cygwin; then
     JAVA=$(cygpath --path --windows "$JAVA")
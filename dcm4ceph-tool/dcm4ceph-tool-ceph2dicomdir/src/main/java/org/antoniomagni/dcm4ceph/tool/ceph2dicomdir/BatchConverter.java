@@ -0,0 +1,495 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+package org.antoniomagni.dcm4ceph.tool.ceph2dicomdir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.antoniomagni.dcm4ceph.core.Cephalogram;
+import org.antoniomagni.dcm4ceph.util.BatchJournal;
+import org.antoniomagni.dcm4ceph.util.FileUtils;
+import org.antoniomagni.dcm4ceph.util.Log;
+import org.antoniomagni.dcm4ceph.util.UpToDateIndex;
+import org.antoniomagni.dcm4ceph.util.VirtualThreads;
+import org.antoniomagni.dcm4ceph.util.WritePolicy;
+
+/**
+ * Converts a whole directory tree of cephalograms.
+ * <p>
+ * Every JPEG image found under the input directory is paired with its sibling
+ * .properties file, as returned by {@link FileUtils#getPropertiesFile(File)},
+ * and converted on a bounded pool of worker threads. Images without a
+ * properties file are skipped, and a file that fails to convert is reported
+ * without aborting the rest of the run.
+ * <p>
+ * On Java 21 or later the conversions can instead run on virtual threads,
+ * one per file, as set by {@link #setVirtualThreads(boolean)}.
+ *
+ * @author Antonio Magni <dcm4ceph@antoniomagni.org>
+ *
+ */
+public class BatchConverter {
+
+	private static final String[] IMAGE_EXTENSIONS = { ".jpg", ".jpeg" };
+
+	private static final int PROGRESS_INTERVAL = 100;
+
+	/**
+	 * The number of conversions after which the up-to-date index is saved,
+	 * so that a crash loses at most that many entries.
+	 */
+	private static final int INDEX_SAVE_INTERVAL = 1000;
+
+	/**
+	 * The number of conversions in flight on virtual threads. It only bounds
+	 * the heap used when the output is slower than the scan.
+	 */
+	private static final int MAX_IN_FLIGHT = 10000;
+
+	private final File inputRoot;
+
+	private final File outputRoot;
+
+	private final int threads;
+
+	private boolean contentUIDs;
+
+	private int fragmentSize;
+
+	private boolean offsetTable;
+
+	private BatchJournal journal;
+
+	private UpToDateIndex index;
+
+	private WritePolicy writePolicy = WritePolicy.DEFAULT;
+
+	private boolean virtualThreads;
+
+	private Semaphore inFlight;
+
+	private final AtomicInteger converted = new AtomicInteger();
+
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private int skipped;
+
+	private int resumed;
+
+	private int upToDate;
+
+	private long startTime;
+
+	/**
+	 * Create a batch converter with one worker per available processor.
+	 *
+	 * @param inputRoot
+	 *            The directory to scan for images.
+	 * @param outputRoot
+	 *            The directory where to write the .dcm files, mirroring the
+	 *            structure of inputRoot. Can be {@code null}, in which case
+	 *            each .dcm file is written next to its image.
+	 */
+	public BatchConverter(File inputRoot, File outputRoot) {
+		this(inputRoot, outputRoot, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a batch converter.
+	 *
+	 * @param inputRoot
+	 *            The directory to scan for images.
+	 * @param outputRoot
+	 *            The directory where to write the .dcm files. Can be
+	 *            {@code null}.
+	 * @param threads
+	 *            The number of worker threads.
+	 */
+	public BatchConverter(File inputRoot, File outputRoot, int threads) {
+		this.inputRoot = inputRoot;
+		this.outputRoot = outputRoot;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Convert all images found under the input directory.
+	 * <p>
+	 * Blocks until every conversion has finished.
+	 *
+	 * @return The number of files that failed to convert.
+	 */
+	public int run() {
+		startTime = System.currentTimeMillis();
+
+		ExecutorService pool;
+		if (virtualThreads) {
+			pool = VirtualThreads.newExecutor();
+			inFlight = new Semaphore(MAX_IN_FLIGHT);
+		} else {
+			// The queue is bounded, so that a large tree does not queue up
+			// thousands of tasks: when it is full the scanning thread
+			// converts the file itself.
+			pool = new ThreadPoolExecutor(threads, threads, 0L,
+					TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+							threads * 4),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+
+		scan(inputRoot, pool);
+
+		boolean complete = true;
+		pool.shutdown();
+		try {
+			while (!pool.awaitTermination(1, TimeUnit.MINUTES))
+				Log.info(progress());
+		} catch (InterruptedException e) {
+			Log.warn("Interrupted while waiting for conversions to finish.");
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+			complete = false;
+		}
+
+		try {
+			writePolicy.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+			Log.err("Could not commit the last files written.");
+		}
+		syncJournal();
+		if (journal != null && complete && failed.get() == 0) {
+			try {
+				journal.delete();
+			} catch (IOException e) {
+				Log.warn("Could not delete " + journal.getFile() + ": " + e);
+			}
+		}
+
+		Log.info(progress() + ", " + failed.get() + " failed, " + skipped
+				+ " skipped, " + resumed + " done in an earlier run, "
+				+ upToDate + " up to date.");
+		return failed.get();
+	}
+
+	/**
+	 * Derive the UIDs from the content of each image.
+	 *
+	 * @param contentUIDs
+	 * @see Cephalogram#useContentUIDs()
+	 */
+	public void setContentUIDs(boolean contentUIDs) {
+		this.contentUIDs = contentUIDs;
+	}
+
+	/**
+	 * @param fragmentSize
+	 * @see Cephalogram#setFragmentSize(int)
+	 */
+	public void setFragmentSize(int fragmentSize) {
+		this.fragmentSize = fragmentSize;
+	}
+
+	/**
+	 * @param offsetTable
+	 * @see Cephalogram#setOffsetTable(boolean)
+	 */
+	public void setOffsetTable(boolean offsetTable) {
+		this.offsetTable = offsetTable;
+	}
+
+	/**
+	 * Record the converted files in a journal, and skip the files it records
+	 * as converted by an earlier run.
+	 * <p>
+	 * A file is recorded by its absolute path once it is in place, as set by
+	 * {@link #setWritePolicy(WritePolicy)}. When a run ends with no failure
+	 * the journal is deleted, so that the next run converts the files that
+	 * changed.
+	 *
+	 * @param journal
+	 *            The journal, or {@code null} to convert all files.
+	 */
+	public void setJournal(BatchJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Skip the images that did not change since they were converted, and
+	 * record the converted images in an index. An image converted with other
+	 * encapsulation or UID options is converted again; the sync policy does
+	 * not change the files, and is not recorded. The index is saved every
+	 * {@value #INDEX_SAVE_INTERVAL} conversions; saving it at the end of the
+	 * run is left to the caller.
+	 *
+	 * @param index
+	 *            The index, or {@code null} to convert all files.
+	 */
+	public void setUpToDateIndex(UpToDateIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Run each conversion on its own virtual thread, instead of a pool of
+	 * as many threads as given to the constructor.
+	 * <p>
+	 * A virtual thread waiting on slow storage gives its carrier thread
+	 * back, so thousands of conversions can wait at once without sizing a
+	 * pool. Needs Java 21 or later.
+	 *
+	 * @param virtualThreads
+	 * @throws UnsupportedOperationException
+	 *             If the running JVM has no virtual threads.
+	 * @see VirtualThreads
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		if (virtualThreads && !VirtualThreads.isAvailable())
+			throw new UnsupportedOperationException(
+					"Virtual threads need Java 21 or later.");
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Set how the .dcm files are put in place once written.
+	 * <p>
+	 * Each file is written under a temporary name and committed with the
+	 * policy. With group commit, the last group is committed when the run
+	 * ends.
+	 *
+	 * @param writePolicy
+	 */
+	public void setWritePolicy(WritePolicy writePolicy) {
+		this.writePolicy = writePolicy;
+	}
+
+	public int getConverted() {
+		return converted.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	public int getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return The number of files skipped because the journal records them as
+	 *         converted.
+	 */
+	public int getResumed() {
+		return resumed;
+	}
+
+	/**
+	 * @return The number of files skipped because the index records them as
+	 *         unchanged.
+	 */
+	public int getUpToDate() {
+		return upToDate;
+	}
+
+	private void scan(File dir, ExecutorService pool) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			Log.warn("Cannot list directory " + dir + ".");
+			return;
+		}
+		Arrays.sort(files);
+
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].isDirectory())
+				scan(files[i], pool);
+			else if (isImage(files[i]))
+				submit(files[i], pool);
+		}
+	}
+
+	private void submit(final File image, ExecutorService pool) {
+		if (journal != null && journal.isDone(image.getAbsolutePath())) {
+			resumed++;
+			return;
+		}
+
+		final File properties = FileUtils.getPropertiesFile(image);
+		if (properties == null || !properties.isFile()) {
+			Log.warn("No properties file for " + image + ". Skipping.");
+			skipped++;
+			return;
+		}
+
+		if (index != null
+				&& index.isUpToDate(image, properties, getOutputFile(image),
+						getOptions())) {
+			upToDate++;
+			return;
+		}
+
+		if (inFlight == null) {
+			pool.execute(new Runnable() {
+				public void run() {
+					convert(image, properties);
+				}
+			});
+			return;
+		}
+
+		inFlight.acquireUninterruptibly();
+		pool.execute(new Runnable() {
+			public void run() {
+				try {
+					convert(image, properties);
+				} finally {
+					inFlight.release();
+				}
+			}
+		});
+	}
+
+	private void convert(final File image, final File properties) {
+		try {
+			final Cephalogram ceph = new Cephalogram(image, properties);
+			if (contentUIDs)
+				ceph.useContentUIDs();
+			ceph.setFragmentSize(fragmentSize);
+			ceph.setOffsetTable(offsetTable);
+			ceph.setWritePolicy(writePolicy);
+
+			// The checksum for the journal is computed as the file is
+			// written, rather than by reading it back.
+			final CRC32 crc = journal != null ? new CRC32() : null;
+			File dcmFile = getOutputFile(image);
+			ceph.writeDCM(dcmFile, crc, new WritePolicy.Listener() {
+				public void committed(File target) {
+					BatchConverter.this.committed(image, properties, target,
+							ceph.getContentDigest(), crc);
+				}
+
+				public void failed(File target, IOException e) {
+					BatchConverter.this.failed.incrementAndGet();
+					Log.err("Could not convert " + image + ": " + e);
+				}
+			});
+			syncJournal();
+		} catch (IOException e) {
+			failed.incrementAndGet();
+			Log.err("Could not convert " + image + ": " + e);
+		} catch (RuntimeException e) {
+			failed.incrementAndGet();
+			Log.err("Could not convert " + image + ": " + e);
+		}
+	}
+
+	/**
+	 * Record a .dcm file once it is in place.
+	 */
+	private void committed(File image, File properties, File dcmFile,
+			String digest, CRC32 crc) {
+		try {
+			if (journal != null)
+				journal.done(image.getAbsolutePath(), new File[] { dcmFile },
+						new long[] { crc.getValue() });
+			if (index != null)
+				index.update(image, properties, dcmFile, digest, getOptions());
+		} catch (IOException e) {
+			failed.incrementAndGet();
+			Log.err("Could not record " + dcmFile + ": " + e);
+			return;
+		}
+
+		int n = converted.incrementAndGet();
+		if (n % PROGRESS_INTERVAL == 0)
+			Log.info(progress());
+		if (index != null && n % INDEX_SAVE_INTERVAL == 0) {
+			try {
+				index.save();
+			} catch (IOException e) {
+				Log.err("Could not save " + index.getFile() + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * The options that change the .dcm files, recorded in the up-to-date
+	 * index.
+	 */
+	private String getOptions() {
+		return "fragmentSize=" + fragmentSize + ",offsetTable=" + offsetTable
+				+ ",contentUIDs=" + contentUIDs;
+	}
+
+	/**
+	 * Sync the journal entries of the files committed so far, if the files
+	 * themselves are synced. With group commit, only the thread that
+	 * committed a group finds entries to sync.
+	 */
+	private void syncJournal() {
+		if (journal == null || writePolicy.getSync() == WritePolicy.Sync.NONE)
+			return;
+		try {
+			journal.sync();
+		} catch (IOException e) {
+			Log.err("Could not sync " + journal.getFile() + ": " + e);
+		}
+	}
+
+	/**
+	 * Get the output file for an image, mirroring its position below the
+	 * input directory. Does not access the file system.
+	 */
+	private File getOutputFile(File image) {
+		if (outputRoot == null)
+			return FileUtils.getDCMFile(image);
+
+		String relative = inputRoot.toURI().relativize(
+				image.getParentFile().toURI()).getPath();
+		return new File(new File(outputRoot, relative), FileUtils
+				.getDCMFileName(image));
+	}
+
+	private String progress() {
+		double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+		int n = converted.get();
+		return "Converted " + n + " files in " + seconds + " s ("
+				+ (seconds > 0 ? Math.round(n / seconds) : n) + " files/s)";
+	}
+
+	static boolean isImage(File file) {
+		String name = file.getName().toLowerCase();
+		for (int i = 0; i < IMAGE_EXTENSIONS.length; i++) {
+			if (name.endsWith(IMAGE_EXTENSIONS[i]))
+				return true;
+		}
+		return false;
+	}
+
+}
@@ -25,8 +25,16 @@
 package org.antoniomagni.dcm4ceph.tool.ceph2dicomdir;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.antoniomagni.dcm4ceph.core.Cephalogram;
+import org.antoniomagni.dcm4ceph.util.BatchJournal;
+import org.antoniomagni.dcm4ceph.util.Log;
+import org.antoniomagni.dcm4ceph.util.UpToDateIndex;
+import org.antoniomagni.dcm4ceph.util.VirtualThreads;
+import org.antoniomagni.dcm4ceph.util.WritePolicy;
 
 /**
  * @author Antonio Magni <dcm4ceph@antoniomagni.org>
@@ -35,24 +43,180 @@ import org.antoniomagni.dcm4ceph.core.Cephalogram;
 public class Ceph2DCM {
 
 	/**
+	 * Convert a cephalogram image, or all the images found in a directory
+	 * tree, to DICOM.
+	 * <p>
+	 * Usage:
+	 * {@code ceph2dcm [--content-uids] [--journal] [--incremental] [--hash] [--fragment-size=<bytes>] [--offset-table] [--sync=<none|file|group>] [--virtual-threads] <image or directory> [output directory]}
+	 * <p>
+	 * With {@code --content-uids} the UIDs are derived from the image and its
+	 * properties, so converting the same image again gives the same UIDs.
+	 * <p>
+	 * With {@code --journal} a directory conversion records the converted
+	 * files in a journal in the output directory, and skips the files already
+	 * recorded there, so that an interrupted run can be resumed. The journal
+	 * is deleted once a run converted every file.
+	 * <p>
+	 * With {@code --incremental} a directory conversion skips the images
+	 * that, with their properties file, did not change since they were last
+	 * converted, as recorded in an index in the output directory. With
+	 * {@code --hash}, which implies {@code --incremental}, the index also
+	 * records content hashes, so that a file whose time changed but whose
+	 * content did not is still skipped.
+	 * <p>
+	 * With {@code --fragment-size} the JPEG stream is split in fragments of
+	 * at most that many bytes, and with {@code --offset-table} a Basic Offset
+	 * Table is written.
+	 * <p>
+	 * Each file is written under a temporary name and renamed once complete.
+	 * {@code --sync} sets when the files are synced to disk: never (the
+	 * default), after each file, or by groups of files.
+	 * <p>
+	 * With {@code --virtual-threads} a directory conversion runs each file on
+	 * its own virtual thread. Needs Java 21 or later; on an older JVM a
+	 * warning is logged and the usual pool of threads is used.
+	 *
 	 * @param args
+	 * @see WritePolicy
 	 */
 	public static void main(String[] args) {
+		try {
+			if (run(args) == null)
+				System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Run a conversion, as {@link #main(String[])} does, without exiting.
+	 *
+	 * @param args
+	 *            The command line arguments.
+	 * @return The file written, or the output directory of a directory
+	 *         conversion; {@code null} if the image, or any image of the
+	 *         directory, could not be converted.
+	 * @throws IllegalArgumentException
+	 *             If the image is missing from the arguments, with the usage
+	 *             as message, or if an option has an invalid value.
+	 * @throws IOException
+	 */
+	static File run(String[] args) throws IOException {
 		File inputFile;
 		String outputDirectory;
+		boolean contentUIDs = false;
+		boolean useJournal = false;
+		boolean incremental = false;
+		boolean hashing = false;
+		int fragmentSize = 0;
+		boolean offsetTable = false;
+		WritePolicy writePolicy = WritePolicy.DEFAULT;
+		boolean virtualThreads = false;
+
+		List<String> argList = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--content-uids"))
+				contentUIDs = true;
+			else if (args[i].equals("--journal"))
+				useJournal = true;
+			else if (args[i].equals("--incremental"))
+				incremental = true;
+			else if (args[i].equals("--hash"))
+				incremental = hashing = true;
+			else if (args[i].startsWith("--fragment-size="))
+				fragmentSize = parseFragmentSize(args[i].substring(args[i]
+						.indexOf('=') + 1));
+			else if (args[i].equals("--offset-table"))
+				offsetTable = true;
+			else if (args[i].startsWith("--sync="))
+				writePolicy = WritePolicy.forName(args[i].substring(args[i]
+						.indexOf('=') + 1));
+			else if (args[i].equals("--virtual-threads"))
+				virtualThreads = true;
+			else
+				argList.add(args[i]);
+		}
 
-		inputFile = new File(args[0]);
+		if (argList.isEmpty())
+			throw new IllegalArgumentException(
+					"Usage: ceph2dcm [--content-uids] [--journal] [--incremental] [--hash] [--fragment-size=<bytes>] [--offset-table] [--sync=<none|file|group>] [--virtual-threads] <image or directory> [output directory]");
 
-		if (args.length > 1)
-			outputDirectory = args[1];
+		inputFile = new File(argList.get(0));
+
+		if (argList.size() > 1)
+			outputDirectory = argList.get(1);
 		else
 			outputDirectory = null;
 
+		if (inputFile.isDirectory()) {
+			File outputRoot = outputDirectory == null ? null : new File(
+					outputDirectory);
+			BatchConverter batch = new BatchConverter(inputFile, outputRoot);
+			batch.setContentUIDs(contentUIDs);
+			batch.setFragmentSize(fragmentSize);
+			batch.setOffsetTable(offsetTable);
+			batch.setWritePolicy(writePolicy);
+			if (virtualThreads) {
+				if (VirtualThreads.isAvailable())
+					batch.setVirtualThreads(true);
+				else
+					Log.warn("Virtual threads need Java 21 or later, using "
+							+ "a pool of platform threads.");
+			}
+
+			File resultDir = outputRoot == null ? inputFile : outputRoot;
+			BatchJournal journal = null;
+			if (useJournal) {
+				resultDir.mkdirs();
+				journal = new BatchJournal(new File(resultDir,
+						BatchJournal.DEFAULT_NAME));
+				batch.setJournal(journal);
+			}
+			UpToDateIndex index = null;
+			if (incremental) {
+				resultDir.mkdirs();
+				index = new UpToDateIndex(new File(resultDir,
+						UpToDateIndex.DEFAULT_NAME), hashing);
+				batch.setUpToDateIndex(index);
+			}
+			try {
+				if (batch.run() > 0)
+					return null;
+			} finally {
+				if (journal != null)
+					journal.close();
+				if (index != null)
+					index.save();
+			}
+			return resultDir;
+		}
+
 		Cephalogram ceph = new Cephalogram(inputFile);
+		if (contentUIDs)
+			ceph.useContentUIDs();
+		ceph.setFragmentSize(fragmentSize);
+		ceph.setOffsetTable(offsetTable);
+		ceph.setWritePolicy(writePolicy);
+		File dcmFile;
 		if (outputDirectory != null)
-			ceph.writeDCM(outputDirectory, null);
+			dcmFile = ceph.writeDCM(outputDirectory, null);
 		else
-			ceph.writeDCM();
+			dcmFile = ceph.writeDCM();
+		writePolicy.flush();
+		return dcmFile;
+	}
+
+	private static int parseFragmentSize(String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid fragment size "
+					+ value + ", expected a number of bytes.");
+		}
 	}
 
 }
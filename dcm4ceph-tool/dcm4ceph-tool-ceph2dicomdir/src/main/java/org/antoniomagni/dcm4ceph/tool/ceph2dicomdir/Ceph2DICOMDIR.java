@@ -29,9 +29,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.antoniomagni.dcm4ceph.core.BBCephalogramSet;
+import org.antoniomagni.dcm4ceph.util.BatchJournal;
+import org.antoniomagni.dcm4ceph.util.WritePolicy;
 
 /**
  * @author afm
@@ -50,23 +56,143 @@ public class Ceph2DICOMDIR {
 	}
 
 	/**
+	 * Usage:
+	 * {@code ceph2dicomdir [--content-uids] [--append] [--parallel] <ceph1> <ceph2> <fiducials>}
+	 * <p>
+	 * With {@code --append} the set is added to an existing DICOMDIR instead
+	 * of replacing it. With {@code --parallel} the three instances are written
+	 * concurrently.
+	 * <p>
+	 * A whole collection is converted with
+	 * {@code ceph2dicomdir [--content-uids] [--journal] --collection <directory> <fiducials> [output directory]}
+	 * , pairing the images by name (see {@link PairingEngine}). The output
+	 * directory defaults to BBcephset in the collection directory. With
+	 * {@code --journal} the converted sets are recorded in a journal in the
+	 * output directory, and the sets already recorded there are skipped.
+	 * <p>
+	 * {@code --sync=<none|file|group>} sets when the written files are synced
+	 * to disk: never (the default), after each file, or by groups of files.
+	 *
 	 * @param args
+	 * @see WritePolicy
 	 */
 	public static void main(String[] args) {
+		try {
+			if (run(args) == null)
+				System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Run a conversion, as {@link #main(String[])} does, without exiting.
+	 *
+	 * @param args
+	 *            The command line arguments.
+	 * @return The directory containing the DICOMDIR, or {@code null} if any
+	 *         set of a collection could not be converted.
+	 * @throws IllegalArgumentException
+	 *             With the usage as message, if files are missing from the
+	 *             arguments.
+	 */
+	static File run(String[] args) throws IOException {
 		// TODO set arguments
+		boolean contentUIDs = false;
+		boolean append = false;
+		boolean parallel = false;
+		boolean collection = false;
+		boolean useJournal = false;
+		WritePolicy writePolicy = WritePolicy.DEFAULT;
+
+		List<String> argList = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--content-uids"))
+				contentUIDs = true;
+			else if (args[i].equals("--append"))
+				append = true;
+			else if (args[i].equals("--parallel"))
+				parallel = true;
+			else if (args[i].equals("--collection"))
+				collection = true;
+			else if (args[i].equals("--journal"))
+				useJournal = true;
+			else if (args[i].startsWith("--sync="))
+				writePolicy = WritePolicy.forName(args[i].substring(args[i]
+						.indexOf('=') + 1));
+			else
+				argList.add(args[i]);
+		}
 
-		File cephfile1 = new File(args[0]);
-		File cephfile2 = new File(args[1]);
-		File fidfile = new File(args[2]);
+		if (collection) {
+			if (argList.size() < 2)
+				throw new IllegalArgumentException(
+						"Usage: ceph2dicomdir [--content-uids] [--journal] [--sync=<none|file|group>] --collection <directory> <fiducials> [output directory]");
+			File inputdir = new File(argList.get(0));
+			File outputdir = argList.size() > 2 ? new File(argList.get(2))
+					: new File(inputdir, "BBcephset");
+			PairingEngine engine = new PairingEngine(inputdir, outputdir,
+					new File(argList.get(1)));
+			engine.setContentUIDs(contentUIDs);
+			engine.setWritePolicy(writePolicy);
+
+			BatchJournal journal = null;
+			if (useJournal) {
+				outputdir.mkdirs();
+				journal = new BatchJournal(new File(outputdir,
+						BatchJournal.DEFAULT_NAME));
+				engine.setJournal(journal);
+			}
+			try {
+				if (engine.run() > 0)
+					return null;
+			} finally {
+				if (journal != null)
+					journal.close();
+			}
+			return outputdir;
+		}
+
+		if (argList.size() < 3)
+			throw new IllegalArgumentException(
+					"Usage: ceph2dicomdir [--content-uids] [--append] [--parallel] <ceph1> <ceph2> <fiducials>");
+
+		File cephfile1 = new File(argList.get(0));
+		File cephfile2 = new File(argList.get(1));
+		File fidfile = new File(argList.get(2));
 
 		BBCephalogramSet cephSet = new BBCephalogramSet(cephfile1, cephfile2,
-				fidfile);
+				fidfile, contentUIDs);
+		cephSet.setWritePolicy(writePolicy);
+
+		ExecutorService executor = null;
+		if (parallel) {
+			executor = Executors.newFixedThreadPool(2);
+			cephSet.setExecutor(executor);
+		}
 
-		cephSet.writeDicomdir(new File(cephfile1.getParent() + File.separator
-				+ "BBcephset"));
+		File rootdir = new File(cephfile1.getParent() + File.separator
+				+ "BBcephset");
+		try {
+			if (append)
+				cephSet.appendCephs(rootdir);
+			else
+				cephSet.writeDicomdir(rootdir);
+		} finally {
+			// Run from the server, a failed request must not leave threads
+			// behind.
+			if (executor != null)
+				executor.shutdown();
+		}
+		writePolicy.flush();
 
 		// printDicomElements(FileUtils.getDCMFile(cephfile));
 
+		return rootdir;
 	}
 
 	private Properties loadConfiguration(File cfgFile) throws IOException {
@@ -0,0 +1,142 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+package org.antoniomagni.dcm4ceph.tool.ceph2dicomdir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Sends a conversion to a running {@link ConversionServer}.
+ * <p>
+ * This class only uses the JDK, so starting it does not load dcm4che. If no
+ * server is listening, the tool is run in this JVM instead.
+ *
+ * @author Antonio Magni <dcm4ceph@antoniomagni.org>
+ *
+ */
+public class ConversionClient {
+
+	private static final int CONNECT_TIMEOUT = 1000;
+
+	/**
+	 * Usage: {@code ConversionClient <ceph2dcm|ceph2dicomdir> [tool arguments]}
+	 * <p>
+	 * Prints the output path and exits with status 0 if the conversion
+	 * succeeded, prints the error and exits with status 1 otherwise.
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println("Usage: ConversionClient <ceph2dcm|ceph2dicomdir> [arguments]");
+			System.exit(1);
+		}
+
+		String[] toolArgs = new String[args.length - 1];
+		System.arraycopy(args, 1, toolArgs, 0, toolArgs.length);
+
+		String response;
+		try {
+			response = send(args[0], toolArgs);
+		} catch (ConnectException e) {
+			runLocally(args[0], toolArgs);
+			return;
+		} catch (IOException e) {
+			System.err.println("ERROR: " + e);
+			System.exit(1);
+			return;
+		}
+
+		int tab = response.indexOf(ConversionServer.SEPARATOR);
+		String status = tab < 0 ? response : response.substring(0, tab);
+		String message = tab < 0 ? "" : response.substring(tab + 1);
+		if (status.equals(ConversionServer.OK)) {
+			System.out.println(message);
+		} else {
+			System.err.println("ERROR: " + message);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Send a request to the server.
+	 * <p>
+	 * Arguments that are not options are made absolute, since the server
+	 * does not run in the working directory of the client.
+	 *
+	 * @return The response line.
+	 * @throws ConnectException
+	 *             If no server is listening.
+	 */
+	static String send(String tool, String[] args) throws IOException {
+		StringBuffer request = new StringBuffer(tool);
+		for (int i = 0; i < args.length; i++) {
+			request.append(ConversionServer.SEPARATOR);
+			if (args[i].startsWith("--"))
+				request.append(args[i]);
+			else
+				request.append(new File(args[i]).getAbsolutePath());
+		}
+		request.append('\n');
+
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress("127.0.0.1", ConversionServer
+					.getPort()), CONNECT_TIMEOUT);
+			Writer out = new OutputStreamWriter(socket.getOutputStream(),
+					ConversionServer.UTF8);
+			out.write(request.toString());
+			out.flush();
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), ConversionServer.UTF8));
+			String response = in.readLine();
+			if (response == null)
+				throw new IOException("Server closed the connection.");
+			return response;
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void runLocally(String tool, String[] args) {
+		if (tool.equals("ceph2dcm"))
+			Ceph2DCM.main(args);
+		else if (tool.equals("ceph2dicomdir"))
+			Ceph2DICOMDIR.main(args);
+		else {
+			System.err.println("ERROR: Unknown tool " + tool + ".");
+			System.exit(1);
+		}
+	}
+
+}
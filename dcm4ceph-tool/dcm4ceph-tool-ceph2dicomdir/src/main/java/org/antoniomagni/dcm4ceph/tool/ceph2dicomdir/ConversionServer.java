@@ -0,0 +1,238 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+package org.antoniomagni.dcm4ceph.tool.ceph2dicomdir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.antoniomagni.dcm4ceph.core.Cephalogram;
+import org.antoniomagni.dcm4ceph.core.SBFiducialSet;
+import org.antoniomagni.dcm4ceph.util.DefaultsRegistry;
+import org.antoniomagni.dcm4ceph.util.Log;
+
+/**
+ * A resident conversion service.
+ * <p>
+ * The server keeps one JVM running, with the dcm4che and dcm4ceph classes
+ * loaded and the defaults parsed, and runs the ceph2dcm and ceph2dicomdir
+ * tools for {@link ConversionClient}s connecting on the loopback interface.
+ * <p>
+ * The protocol is one line per connection each way, in UTF-8. The request is
+ * the tool name followed by its arguments, separated by tabs; paths must be
+ * absolute. The response is {@code OK} followed by a tab and the output path,
+ * or {@code ERROR} followed by a tab and a message.
+ *
+ * @author Antonio Magni <dcm4ceph@antoniomagni.org>
+ *
+ */
+public class ConversionServer {
+
+	/**
+	 * The system property holding the port, shared with the client.
+	 */
+	public static final String PORT_PROPERTY = "dcm4ceph.server.port";
+
+	public static final int DEFAULT_PORT = 11180;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final String SEPARATOR = "\t";
+
+	static final String OK = "OK";
+
+	static final String ERROR = "ERROR";
+
+	private final int port;
+
+	private final int threads;
+
+	/**
+	 * Create a server handling one request per available processor at a time.
+	 *
+	 * @param port
+	 *            The loopback port to listen on.
+	 */
+	public ConversionServer(int port) {
+		this(port, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a server.
+	 *
+	 * @param port
+	 *            The loopback port to listen on.
+	 * @param threads
+	 *            The number of requests handled at the same time.
+	 */
+	public ConversionServer(int port, int threads) {
+		this.port = port;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Start the server.
+	 * <p>
+	 * Usage: {@code ceph2dcmd [port]}
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : getPort();
+		try {
+			new ConversionServer(port).run();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return The port set with {@link #PORT_PROPERTY}, or
+	 *         {@link #DEFAULT_PORT}.
+	 */
+	static int getPort() {
+		return Integer.getInteger(PORT_PROPERTY, DEFAULT_PORT).intValue();
+	}
+
+	/**
+	 * Accept and handle requests until the thread is interrupted.
+	 *
+	 * @throws IOException
+	 *             If the port cannot be bound.
+	 */
+	public void run() throws IOException {
+		warmUp();
+
+		ServerSocket server = new ServerSocket(port, 50, InetAddress
+				.getByName("127.0.0.1"));
+		Log.info("Listening on 127.0.0.1:" + port + ".");
+
+		// Connections waiting for a worker stay in the bounded queue; when it
+		// is full the accepting thread handles the request itself, so that
+		// clients wait in the listen backlog instead.
+		ExecutorService pool = new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				final Socket socket = server.accept();
+				pool.execute(new Runnable() {
+					public void run() {
+						handle(socket);
+					}
+				});
+			}
+		} finally {
+			pool.shutdown();
+			server.close();
+		}
+	}
+
+	/**
+	 * Load the conversion classes and parse the defaults once, so that the
+	 * first request does not pay for it.
+	 */
+	private void warmUp() {
+		try {
+			ClassLoader cl = ConversionServer.class.getClassLoader();
+			Class.forName(Cephalogram.class.getName(), true, cl);
+			Class.forName(SBFiducialSet.class.getName(), true, cl);
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+		}
+		DefaultsRegistry.getDefaults(Cephalogram.class,
+				"ceph_defaults.properties");
+		DefaultsRegistry.getDefaults(SBFiducialSet.class,
+				"fiducial_defaults.properties");
+	}
+
+	private void handle(Socket socket) {
+		try {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+						socket.getInputStream(), UTF8));
+				Writer out = new OutputStreamWriter(socket.getOutputStream(),
+						UTF8);
+
+				String request = in.readLine();
+				String response = request == null ? ERROR + SEPARATOR
+						+ "Empty request." : execute(request);
+				out.write(response);
+				out.write('\n');
+				out.flush();
+			} finally {
+				socket.close();
+			}
+		} catch (IOException e) {
+			Log.warn("Cannot answer request: " + e);
+		}
+	}
+
+	/**
+	 * Run a request.
+	 *
+	 * @param request
+	 *            The tool name and its arguments, separated by tabs.
+	 * @return The response line.
+	 */
+	String execute(String request) {
+		String[] words = request.split(SEPARATOR, -1);
+		String[] args = new String[words.length - 1];
+		System.arraycopy(words, 1, args, 0, args.length);
+
+		try {
+			File output;
+			if (words[0].equals("ceph2dcm"))
+				output = Ceph2DCM.run(args);
+			else if (words[0].equals("ceph2dicomdir"))
+				output = Ceph2DICOMDIR.run(args);
+			else
+				return ERROR + SEPARATOR + "Unknown tool " + words[0] + ".";
+
+			if (output == null)
+				return ERROR + SEPARATOR + "Conversion failed.";
+			return OK + SEPARATOR + output.getAbsolutePath();
+		} catch (IOException e) {
+			Log.err("Could not run " + request + ": " + e);
+			return ERROR + SEPARATOR + e;
+		} catch (RuntimeException e) {
+			Log.err("Could not run " + request + ": " + e);
+			return ERROR + SEPARATOR + e;
+		}
+	}
+
+}
@@ -0,0 +1,442 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+package org.antoniomagni.dcm4ceph.tool.ceph2dicomdir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.antoniomagni.dcm4ceph.core.BBCephalogramSet;
+import org.antoniomagni.dcm4ceph.util.BatchJournal;
+import org.antoniomagni.dcm4ceph.util.IndexedDicomDir;
+import org.antoniomagni.dcm4ceph.util.Log;
+import org.antoniomagni.dcm4ceph.util.WritePolicy;
+
+/**
+ * Finds the lateral and frontal cephalograms of a Bolton Brush collection and
+ * converts them as {@link BBCephalogramSet}s.
+ * <p>
+ * Images are named after the subject, the view and the age, as in
+ * {@code B1893L12.jpg} and {@code B1893F12.jpg}: subject B1893, lateral and
+ * frontal view, age 12. The input tree is scanned once, and every image is
+ * put in a hash index keyed by subject and age. Keys that have both views
+ * become a set; the rest, and images not following the naming, are reported
+ * as orphans.
+ * <p>
+ * The sets are converted on a bounded pool of worker threads and all added to
+ * one DICOMDIR in the output directory. Each set is written below
+ * {@code <subject>/<age>}.
+ *
+ * @author afm
+ *
+ */
+public class PairingEngine {
+
+	private static final Pattern NAME = Pattern.compile(
+			"([A-Z]*\\d+)([LF])(\\d+)", Pattern.CASE_INSENSITIVE);
+
+	private final File inputRoot;
+
+	private final File outputRoot;
+
+	private final File fiducialFile;
+
+	private final int threads;
+
+	private boolean contentUIDs;
+
+	private BatchJournal journal;
+
+	private WritePolicy writePolicy = WritePolicy.DEFAULT;
+
+	private final Map<String, Pair> index = new HashMap<String, Pair>();
+
+	private final List<String> orphans = new ArrayList<String>();
+
+	private final AtomicInteger converted = new AtomicInteger();
+
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private int resumed;
+
+	/**
+	 * A lateral and frontal image of the same subject at the same age.
+	 */
+	public static class Pair implements Comparable<Pair> {
+
+		private final String subject;
+
+		private final String age;
+
+		private File lateral;
+
+		private File frontal;
+
+		Pair(String subject, String age) {
+			this.subject = subject;
+			this.age = age;
+		}
+
+		public String getSubject() {
+			return subject;
+		}
+
+		public String getAge() {
+			return age;
+		}
+
+		public File getLateral() {
+			return lateral;
+		}
+
+		public File getFrontal() {
+			return frontal;
+		}
+
+		public boolean isComplete() {
+			return lateral != null && frontal != null;
+		}
+
+		public int compareTo(Pair o) {
+			int c = subject.compareTo(o.subject);
+			return c != 0 ? c : age.compareTo(o.age);
+		}
+
+		/**
+		 * @return The key of this pair in a {@link BatchJournal}.
+		 */
+		String getKey() {
+			return lateral.getPath() + "|" + frontal.getPath();
+		}
+
+		public String toString() {
+			return subject + " age " + age;
+		}
+	}
+
+	/**
+	 * Create a pairing engine with one worker per available processor.
+	 *
+	 * @param inputRoot
+	 *            The directory to scan for images.
+	 * @param outputRoot
+	 *            The directory where to write the sets and the DICOMDIR.
+	 * @param fiducialFile
+	 *            The fiducial properties, shared by all sets.
+	 */
+	public PairingEngine(File inputRoot, File outputRoot, File fiducialFile) {
+		this(inputRoot, outputRoot, fiducialFile, Runtime.getRuntime()
+				.availableProcessors());
+	}
+
+	/**
+	 * Create a pairing engine.
+	 *
+	 * @param inputRoot
+	 *            The directory to scan for images.
+	 * @param outputRoot
+	 *            The directory where to write the sets and the DICOMDIR.
+	 * @param fiducialFile
+	 *            The fiducial properties, shared by all sets.
+	 * @param threads
+	 *            The number of worker threads.
+	 */
+	public PairingEngine(File inputRoot, File outputRoot, File fiducialFile,
+			int threads) {
+		this.inputRoot = inputRoot;
+		this.outputRoot = outputRoot;
+		this.fiducialFile = fiducialFile;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Derive the UIDs of each set from its content.
+	 *
+	 * @param contentUIDs
+	 * @see BBCephalogramSet#BBCephalogramSet(File, File, File, boolean)
+	 */
+	public void setContentUIDs(boolean contentUIDs) {
+		this.contentUIDs = contentUIDs;
+	}
+
+	/**
+	 * Record the converted sets in a journal, and skip the sets it records as
+	 * converted by an earlier run.
+	 * <p>
+	 * A set is recorded once its three files are written and its records are
+	 * committed to the DICOMDIR. When a run ends with no failure the journal
+	 * is deleted, so that the next run converts the sets again.
+	 *
+	 * @param journal
+	 *            The journal, or {@code null} to convert all sets.
+	 */
+	public void setJournal(BatchJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Set how the files of each set are put in place once written.
+	 * <p>
+	 * With group commit and a journal, the group is committed after each
+	 * set, since a set is only recorded once its files are in place.
+	 *
+	 * @param writePolicy
+	 */
+	public void setWritePolicy(WritePolicy writePolicy) {
+		this.writePolicy = writePolicy;
+	}
+
+	/**
+	 * Scan the input directory and pair the images.
+	 *
+	 * @return The complete pairs, sorted by subject and age.
+	 */
+	public List<Pair> scan() {
+		index.clear();
+		orphans.clear();
+		scan(inputRoot);
+
+		List<Pair> pairs = new ArrayList<Pair>();
+		for (Pair pair : index.values()) {
+			if (pair.isComplete())
+				pairs.add(pair);
+			else
+				orphans.add((pair.lateral != null ? pair.lateral
+						: pair.frontal)
+						+ ": no " + (pair.lateral != null ? "frontal" : "lateral")
+						+ " image for " + pair + ".");
+		}
+		Collections.sort(pairs);
+		Collections.sort(orphans);
+		return pairs;
+	}
+
+	/**
+	 * Scan the input directory and convert all complete pairs.
+	 * <p>
+	 * Blocks until every set has been written.
+	 *
+	 * @return The number of sets that failed to convert.
+	 */
+	public int run() {
+		long startTime = System.currentTimeMillis();
+		List<Pair> pairs = scan();
+
+		for (String orphan : orphans)
+			Log.warn(orphan);
+		Log.info("Found " + pairs.size() + " sets and " + orphans.size()
+				+ " orphans.");
+
+		outputRoot.mkdirs();
+		final IndexedDicomDir dicomdir;
+		try {
+			dicomdir = IndexedDicomDir
+					.open(new File(outputRoot, "DICOMDIR"));
+		} catch (IOException e) {
+			e.printStackTrace();
+			Log.err("Cannot open DICOMDIR in " + outputRoot + ".");
+			return pairs.size();
+		}
+
+		ExecutorService pool = new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+
+		for (final Pair pair : pairs) {
+			if (journal != null && journal.isDone(pair.getKey())) {
+				resumed++;
+				continue;
+			}
+			pool.execute(new Runnable() {
+				public void run() {
+					convert(pair, dicomdir);
+				}
+			});
+		}
+
+		boolean complete = true;
+		pool.shutdown();
+		try {
+			while (!pool.awaitTermination(1, TimeUnit.MINUTES))
+				Log.info("Converted " + converted.get() + " of "
+						+ pairs.size() + " sets.");
+		} catch (InterruptedException e) {
+			Log.warn("Interrupted while waiting for conversions to finish.");
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+			complete = false;
+		}
+
+		try {
+			writePolicy.flush();
+		} catch (IOException e) {
+			// The sets whose files failed are not known here: count the
+			// run as failed.
+			failed.incrementAndGet();
+			e.printStackTrace();
+			Log.err("Could not commit the last files written.");
+		}
+
+		try {
+			dicomdir.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			Log.err("Cannot close DICOMDIR in " + outputRoot + ".");
+			failed.incrementAndGet();
+		}
+
+		if (journal != null && complete && failed.get() == 0) {
+			try {
+				journal.delete();
+			} catch (IOException e) {
+				Log.warn("Could not delete " + journal.getFile() + ": " + e);
+			}
+		}
+
+		double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+		Log.info("Converted " + converted.get() + " sets in " + seconds
+				+ " s, " + failed.get() + " failed, " + resumed
+				+ " done in an earlier run.");
+		return failed.get();
+	}
+
+	/**
+	 * @return The orphans found by the last scan, one message per file.
+	 */
+	public List<String> getOrphans() {
+		return Collections.unmodifiableList(orphans);
+	}
+
+	public int getConverted() {
+		return converted.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return The number of sets skipped because the journal records them as
+	 *         converted.
+	 */
+	public int getResumed() {
+		return resumed;
+	}
+
+	private void scan(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			Log.warn("Cannot list directory " + dir + ".");
+			return;
+		}
+		Arrays.sort(files);
+
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].isDirectory())
+				scan(files[i]);
+			else if (BatchConverter.isImage(files[i]))
+				add(files[i]);
+		}
+	}
+
+	private void add(File image) {
+		String name = image.getName();
+		Matcher m = NAME.matcher(name.substring(0, name.lastIndexOf('.')));
+		if (!m.matches()) {
+			orphans.add(image + ": name does not follow the "
+					+ "<subject><L|F><age> naming.");
+			return;
+		}
+
+		String subject = m.group(1).toUpperCase();
+		String age = m.group(3);
+		String key = subject + '/' + age;
+		Pair pair = index.get(key);
+		if (pair == null) {
+			pair = new Pair(subject, age);
+			index.put(key, pair);
+		}
+
+		boolean lateral = m.group(2).equalsIgnoreCase("L");
+		File existing = lateral ? pair.lateral : pair.frontal;
+		if (existing != null) {
+			orphans.add(image + ": duplicate of " + existing + ".");
+			return;
+		}
+		if (lateral)
+			pair.lateral = image;
+		else
+			pair.frontal = image;
+	}
+
+	private void convert(Pair pair, IndexedDicomDir dicomdir) {
+		try {
+			BBCephalogramSet set = new BBCephalogramSet(pair.lateral,
+					pair.frontal, fiducialFile, contentUIDs);
+			set.setWritePolicy(writePolicy);
+			set.setChecksums(journal != null);
+			File setdir = new File(new File(outputRoot, pair.subject),
+					pair.age);
+			set.writeCephs(setdir, dicomdir);
+
+			File[] files = set.getWrittenFiles();
+			for (int i = 0; i < files.length; i++) {
+				if (files[i] == null) {
+					failed.incrementAndGet();
+					Log.err("Could not write all files of " + pair + ".");
+					return;
+				}
+			}
+
+			if (journal != null) {
+				writePolicy.flush();
+				dicomdir.commit();
+				journal.done(pair.getKey(), files, set.getWrittenChecksums());
+				if (writePolicy.getSync() != WritePolicy.Sync.NONE)
+					journal.sync();
+			}
+			converted.incrementAndGet();
+		} catch (IOException e) {
+			failed.incrementAndGet();
+			Log.err("Could not convert " + pair + ": " + e);
+		} catch (RuntimeException e) {
+			failed.incrementAndGet();
+			Log.err("Could not convert " + pair + ": " + e);
+		}
+	}
+
+}
@@ -0,0 +1,515 @@
+/**
+ * dcm4ceph, a DICOM library for digital cephalograms
+ * Copyright (C) 2006  Antonio Magni
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Antonio Magni
+ * email: dcm4ceph@antoniomagni.org
+ * website: http://dcm4ceph.antoniomagni.org
+ *
+ */
+
+package org.antoniomagni.dcm4ceph.tool.ceph2dicomdir;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.antoniomagni.dcm4ceph.core.Cephalogram;
+import org.antoniomagni.dcm4ceph.util.FileUtils;
+import org.antoniomagni.dcm4ceph.util.Log;
+
+/**
+ * Watches drop directories and converts the cephalograms put there.
+ * <p>
+ * An image is converted once both the image and its .properties file exist
+ * and neither has changed for a quiet period: the sizes are recorded when the
+ * period starts, and the image is only converted if they are the same when it
+ * ends. Any new event on either file starts the period again, so a file that
+ * is still being copied is not picked up.
+ * <p>
+ * Conversions run on a bounded pool with a bounded backlog queue. When the
+ * backlog is full, ready images stay pending and are submitted again later,
+ * so the watching thread never blocks on a conversion.
+ *
+ * @author Antonio Magni <dcm4ceph@antoniomagni.org>
+ *
+ */
+public class WatchFolderDaemon {
+
+	private static final long DEFAULT_QUIET_PERIOD = 2000;
+
+	private final List<File> dropDirs;
+
+	private final File outputRoot;
+
+	private final int threads;
+
+	private final int backlog;
+
+	private long quietPeriod = DEFAULT_QUIET_PERIOD;
+
+	private boolean contentUIDs;
+
+	private WatchService watcher;
+
+	private final Map<WatchKey, File> keys = new HashMap<WatchKey, File>();
+
+	/**
+	 * Images waiting for their files to be complete, accessed by the watching
+	 * thread only.
+	 */
+	private final Map<File, Candidate> pending = new HashMap<File, Candidate>();
+
+	/**
+	 * The size and modification time of each image being converted, so that
+	 * it is not submitted twice. An entry is removed once its conversion is
+	 * done, after which the time of the .dcm file tells whether the image
+	 * changed since.
+	 */
+	private final Map<File, String> submitted = new ConcurrentHashMap<File, String>();
+
+	private final AtomicInteger converted = new AtomicInteger();
+
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private static class Candidate {
+		long lastEvent;
+
+		long imageSize = -1;
+
+		long propertiesSize = -1;
+
+		Candidate(long now) {
+			lastEvent = now;
+		}
+	}
+
+	/**
+	 * Create a daemon with one worker per available processor.
+	 *
+	 * @param dropDirs
+	 *            The directories to watch, including their subdirectories.
+	 * @param outputRoot
+	 *            The directory where to write the .dcm files. Can be
+	 *            {@code null}, in which case each .dcm file is written next
+	 *            to its image. The subdirectories of a drop directory are
+	 *            mirrored below it; with several drop directories, each is
+	 *            mirrored in a subdirectory with its name.
+	 */
+	public WatchFolderDaemon(List<File> dropDirs, File outputRoot) {
+		this(dropDirs, outputRoot, Runtime.getRuntime().availableProcessors(),
+				Runtime.getRuntime().availableProcessors() * 16);
+	}
+
+	/**
+	 * Create a daemon.
+	 *
+	 * @param dropDirs
+	 *            The directories to watch, including their subdirectories.
+	 * @param outputRoot
+	 *            The directory where to write the .dcm files. Can be
+	 *            {@code null}.
+	 * @param threads
+	 *            The number of worker threads.
+	 * @param backlog
+	 *            The number of ready images that can wait for a worker.
+	 */
+	public WatchFolderDaemon(List<File> dropDirs, File outputRoot,
+			int threads, int backlog) {
+		this.dropDirs = new ArrayList<File>(dropDirs);
+		this.outputRoot = outputRoot;
+		this.threads = Math.max(1, threads);
+		this.backlog = Math.max(1, backlog);
+	}
+
+	/**
+	 * Usage:
+	 * {@code ceph2dcmwatch [--content-uids] [--output <directory>] <drop directory>...}
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		boolean contentUIDs = false;
+		File outputRoot = null;
+		List<File> dirs = new ArrayList<File>();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--content-uids"))
+				contentUIDs = true;
+			else if (args[i].equals("--output") && i + 1 < args.length)
+				outputRoot = new File(args[++i]);
+			else
+				dirs.add(new File(args[i]));
+		}
+
+		if (dirs.isEmpty()) {
+			System.err.println("Usage: ceph2dcmwatch [--content-uids] "
+					+ "[--output <directory>] <drop directory>...");
+			System.exit(1);
+		}
+
+		WatchFolderDaemon daemon = new WatchFolderDaemon(dirs, outputRoot);
+		daemon.setContentUIDs(contentUIDs);
+		try {
+			daemon.run();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Derive the UIDs from the content of each image.
+	 *
+	 * @param contentUIDs
+	 * @see Cephalogram#useContentUIDs()
+	 */
+	public void setContentUIDs(boolean contentUIDs) {
+		this.contentUIDs = contentUIDs;
+	}
+
+	/**
+	 * @param quietPeriod
+	 *            How long, in milliseconds, an image and its properties must
+	 *            stay unchanged before they are converted.
+	 */
+	public void setQuietPeriod(long quietPeriod) {
+		this.quietPeriod = quietPeriod;
+	}
+
+	public int getConverted() {
+		return converted.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Watch the drop directories until the thread is interrupted or
+	 * {@link #close()} is called.
+	 * <p>
+	 * Images already in the drop directories are converted too, unless their
+	 * .dcm file exists.
+	 *
+	 * @throws IOException
+	 *             If a drop directory cannot be watched.
+	 */
+	public void run() throws IOException {
+		watcher = FileSystems.getDefault().newWatchService();
+		for (File dir : dropDirs)
+			register(dir);
+
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+				0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						backlog));
+		Log.info("Watching " + dropDirs + ".");
+
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				WatchKey key = watcher.poll(quietPeriod / 2,
+						TimeUnit.MILLISECONDS);
+				while (key != null) {
+					process(key);
+					key = watcher.poll();
+				}
+				submitReady(pool);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			// close() was called.
+		} finally {
+			pool.shutdown();
+			try {
+				pool.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			Log.info("Converted " + converted.get() + " files, "
+					+ failed.get() + " failed.");
+		}
+	}
+
+	/**
+	 * Stop watching. {@link #run()} returns once the running conversions are
+	 * finished.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (watcher != null)
+			watcher.close();
+	}
+
+	/**
+	 * Watch a directory and its subdirectories, and add the images already in
+	 * them that have not been converted.
+	 */
+	private void register(File dir) throws IOException {
+		WatchKey key = dir.toPath().register(watcher, ENTRY_CREATE,
+				ENTRY_MODIFY);
+		keys.put(key, dir);
+
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].isDirectory())
+				register(files[i]);
+			else if (BatchConverter.isImage(files[i])
+					&& !getOutputFile(files[i]).exists())
+				touch(files[i]);
+		}
+	}
+
+	private void process(WatchKey key) {
+		File dir = keys.get(key);
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				// Events were lost: look at all files again.
+				Log.warn("Too many changes in " + dir + ", rescanning.");
+				rescan(dir);
+				continue;
+			}
+
+			File file = new File(dir, ((Path) event.context()).toString());
+			if (event.kind() == ENTRY_CREATE && file.isDirectory()) {
+				try {
+					register(file);
+				} catch (IOException e) {
+					Log.err("Cannot watch " + file + ": " + e);
+				}
+			} else {
+				touch(file);
+			}
+		}
+
+		if (!key.reset())
+			keys.remove(key);
+	}
+
+	/**
+	 * Look at all files of a directory and its subdirectories again, watching
+	 * the subdirectories created while events were lost.
+	 */
+	private void rescan(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (int i = 0; i < files.length; i++) {
+			if (!files[i].isDirectory()) {
+				touch(files[i]);
+			} else if (keys.containsValue(files[i])) {
+				rescan(files[i]);
+			} else {
+				try {
+					register(files[i]);
+				} catch (IOException e) {
+					Log.err("Cannot watch " + files[i] + ": " + e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Note a change to an image or a properties file, restarting the quiet
+	 * period of its image.
+	 */
+	private void touch(File file) {
+		File image;
+		if (BatchConverter.isImage(file))
+			image = file;
+		else if (file.getName().endsWith(".properties"))
+			image = findImage(file);
+		else
+			return;
+
+		if (image == null)
+			return;
+
+		long now = System.currentTimeMillis();
+		Candidate candidate = pending.get(image);
+		if (candidate == null)
+			pending.put(image, new Candidate(now));
+		else
+			candidate.lastEvent = now;
+	}
+
+	/**
+	 * Find the image a properties file belongs to.
+	 */
+	private static File findImage(File properties) {
+		String name = properties.getName();
+		String base = name.substring(0, name.length()
+				- ".properties".length());
+		File[] files = properties.getParentFile().listFiles();
+		if (files == null)
+			return null;
+		for (int i = 0; i < files.length; i++) {
+			String other = files[i].getName();
+			if (other.startsWith(base) && other.lastIndexOf('.') == base.length()
+					&& BatchConverter.isImage(files[i]))
+				return files[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Submit the pending images whose files have been stable for the quiet
+	 * period.
+	 */
+	private void submitReady(ThreadPoolExecutor pool) {
+		long now = System.currentTimeMillis();
+
+		for (Iterator<Map.Entry<File, Candidate>> it = pending.entrySet()
+				.iterator(); it.hasNext();) {
+			Map.Entry<File, Candidate> entry = it.next();
+			final File image = entry.getKey();
+			Candidate candidate = entry.getValue();
+			if (now - candidate.lastEvent < quietPeriod)
+				continue;
+
+			if (!image.isFile()) {
+				it.remove();
+				continue;
+			}
+
+			final File properties = FileUtils.getPropertiesFile(image);
+			long imageSize = image.length();
+			long propertiesSize = properties.isFile() ? properties.length()
+					: -1;
+
+			if (imageSize != candidate.imageSize
+					|| propertiesSize != candidate.propertiesSize) {
+				// Still changing, or first look: check again after another
+				// quiet period.
+				candidate.imageSize = imageSize;
+				candidate.propertiesSize = propertiesSize;
+				candidate.lastEvent = now;
+				continue;
+			}
+
+			if (propertiesSize < 0)
+				continue;
+
+			String signature = imageSize + ":" + image.lastModified() + ":"
+					+ propertiesSize + ":" + properties.lastModified();
+			if (signature.equals(submitted.get(image))
+					|| isConverted(image, properties)) {
+				it.remove();
+				continue;
+			}
+
+			submitted.put(image, signature);
+			try {
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							convert(image, properties);
+						} finally {
+							submitted.remove(image);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// The backlog is full, try again later.
+				submitted.remove(image);
+				return;
+			}
+			it.remove();
+		}
+	}
+
+	/**
+	 * Whether the .dcm file of an image was written after the image and its
+	 * properties last changed.
+	 */
+	private boolean isConverted(File image, File properties) {
+		File dcmFile = getOutputFile(image);
+		long written = dcmFile.lastModified();
+		return written != 0 && written >= image.lastModified()
+				&& written >= properties.lastModified();
+	}
+
+	private void convert(File image, File properties) {
+		try {
+			Cephalogram ceph = new Cephalogram(image, properties);
+			if (contentUIDs)
+				ceph.useContentUIDs();
+			File target = getOutputFile(image);
+			target.getParentFile().mkdirs();
+			File dcmFile = ceph.writeDCM(target);
+			if (dcmFile == null) {
+				failed.incrementAndGet();
+				return;
+			}
+			converted.incrementAndGet();
+		} catch (IOException e) {
+			failed.incrementAndGet();
+			Log.err("Could not convert " + image + ": " + e);
+		} catch (RuntimeException e) {
+			failed.incrementAndGet();
+			Log.err("Could not convert " + image + ": " + e);
+		}
+	}
+
+	/**
+	 * Get the .dcm file of an image, keeping its path relative to its drop
+	 * directory so that images with the same name in different directories
+	 * do not overwrite each other.
+	 */
+	private File getOutputFile(File image) {
+		if (outputRoot == null)
+			return FileUtils.getDCMFile(image);
+
+		URI parent = image.getParentFile().toURI();
+		for (File dropDir : dropDirs) {
+			URI relative = dropDir.toURI().relativize(parent);
+			if (relative.isAbsolute())
+				continue;
+			File root = dropDirs.size() > 1 ? new File(outputRoot, dropDir
+					.getAbsoluteFile().getName()) : outputRoot;
+			return new File(new File(root, relative.getPath()), FileUtils
+					.getDCMFileName(image));
+		}
+		return new File(outputRoot, FileUtils.getDCMFileName(image));
+	}
+
+}